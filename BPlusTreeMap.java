@@ -0,0 +1,424 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * B+Tree map: every entry lives in a leaf, internal nodes only hold copies of
+ * keys that separate their children, and the leaves are linked left to right.
+ * A range scan descends once to the first leaf and then walks the leaf chain,
+ * and internal nodes carry no values, so more of them stay in cache.
+ *
+ * Insert and remove are BTreeMap's top-down algorithms on the same
+ * MapNode splits, shifts and merges. Only those of leaves are different, so
+ * entries never move into internal nodes: a leaf split copies the right
+ * half's first key up, shifts between leaves move an entry and refresh the
+ * separator instead of rotating through the parent, and merged leaves drop
+ * the separator.
+ */
+@SuppressWarnings("unchecked")
+public class BPlusTreeMap<K extends Comparable<K>, V> {
+
+    // Default to 2-3 Tree
+    private int minKeySize = 1;
+    private int minChildrenSize = minKeySize + 1; // 2
+    private int maxKeySize = 2 * (minKeySize + 1) - 1; // 2
+    private int maxChildrenSize = maxKeySize + 1; // 3
+
+    private Node<K, V> root = null;
+    private int size = 0;
+
+    /**
+     * Constructor for B+Tree map which defaults to a 2-3 B-Tree.
+     */
+    public BPlusTreeMap() { }
+
+    /**
+     * Constructor for B+Tree map of ordered parameter. Order here means
+     * minimum number of keys in a non-root node.
+     *
+     * @param order
+     *            of the B-Tree.
+     */
+    public BPlusTreeMap(int order) {
+        this.minKeySize = order - 1;
+        this.minChildrenSize = minKeySize + 1;
+        this.maxKeySize = 2 * (minKeySize + 1) - 1;
+        this.maxChildrenSize = maxKeySize + 1;
+    }
+
+    /**
+     * Get the value mapped to key.
+     *
+     * @param key
+     *            to look up.
+     * @return value or null if key is not in the map.
+     */
+    public V get(K key) {
+        if (root == null)
+            return null;
+        Node<K, V> leaf = findLeaf(key);
+        int index = leaf.lowerBound(key);
+        if (index < leaf.keysSize && leaf.keys[index].compareTo(key) == 0)
+            return leaf.values[index];
+        return null;
+    }
+
+    public boolean containsKey(K key) {
+        if (root == null)
+            return false;
+        Node<K, V> leaf = findLeaf(key);
+        int index = leaf.lowerBound(key);
+        return index < leaf.keysSize && leaf.keys[index].compareTo(key) == 0;
+    }
+
+    // Leaf whose range covers key; keys equal to a separator are on its right
+    private Node<K, V> findLeaf(K key) {
+        Node<K, V> node = root;
+        while (!node.isLeaf())
+            node = node.children[node.upperBound(key)];
+        return node;
+    }
+
+    /**
+     * Map key to value, replacing any value it was mapped to before. Full
+     * nodes are split on the way down so the leaf always has room.
+     *
+     * @param key
+     *            to map.
+     * @param value
+     *            to store.
+     * @return the previous value or null if key was not in the map.
+     */
+    public V put(K key, V value) {
+        if (root == null) {
+            root = new Node<K, V>(maxKeySize, true);
+        } else if (root.keysSize == maxKeySize) {
+            Node<K, V> s = new Node<K, V>(maxKeySize, false);
+            s.insertChildAt(0, root);
+            root = s;
+            splitChild(s, 0);
+        }
+
+        Node<K, V> x = root;
+        while (!x.isLeaf()) {
+            int i = x.upperBound(key);
+            if (x.children[i].keysSize == maxKeySize) {
+                splitChild(x, i);
+                if (key.compareTo(x.keys[i]) >= 0)
+                    i++;
+            }
+            x = x.children[i];
+        }
+        int i = x.lowerBound(key);
+        if (i < x.keysSize && x.keys[i].compareTo(key) == 0) {
+            V previous = x.values[i];
+            x.values[i] = value;
+            return previous;
+        }
+        x.insertAt(i, key, value);
+        size++;
+        return null;
+    }
+
+    private void splitChild(Node<K, V> x, int i) {
+        x.splitChild(i, minKeySize, new Node<K, V>(maxKeySize, x.children[i].isLeaf()));
+    }
+
+    /**
+     * Remove the mapping for key. Every node entered on the way down is first
+     * topped up to more than minKeySize keys, so nothing has to be fixed on
+     * the way back up. Separators equal to a removed key stay, they still
+     * separate their children correctly.
+     *
+     * @param key
+     *            to remove.
+     * @return the removed value or null if key was not in the map.
+     */
+    public V remove(K key) {
+        if (root == null)
+            return null;
+
+        Node<K, V> x = root;
+        while (!x.isLeaf())
+            x = x.fixChildSize(x.upperBound(key), minKeySize);
+
+        V removed = null;
+        int i = x.lowerBound(key);
+        if (i < x.keysSize && x.keys[i].compareTo(key) == 0) {
+            removed = x.values[i];
+            x.removeAt(i);
+            size--;
+        }
+
+        if (root.keysSize == 0)
+            root = root.isLeaf() ? null : root.children[0];
+        return removed;
+    }
+
+    /**
+     * Call action with every entry whose key is in [from, to), in key order.
+     * Only the first leaf is found by a descent, the rest are reached through
+     * the leaf links.
+     *
+     * @param from
+     *            smallest key to include, null for the first key.
+     * @param to
+     *            key to stop before, null for no upper bound.
+     * @param action
+     *            to call with each key and value.
+     */
+    public void scan(K from, K to, BiConsumer<? super K, ? super V> action) {
+        if (root == null)
+            return;
+        Node<K, V> leaf = from == null ? getSmallestNode(root) : findLeaf(from);
+        int index = from == null ? 0 : leaf.lowerBound(from);
+        while (leaf != null) {
+            for (; index < leaf.keysSize; index++) {
+                if (to != null && leaf.keys[index].compareTo(to) >= 0)
+                    return;
+                action.accept(leaf.keys[index], leaf.values[index]);
+            }
+            leaf = leaf.next;
+            index = 0;
+        }
+    }
+
+    /**
+     * Iterate the entries whose key is in [from, to) in key order by walking
+     * the leaf chain.
+     *
+     * @param from
+     *            smallest key to include, null for the first key.
+     * @param to
+     *            key to stop before, null for no upper bound.
+     * @return iterator over the range, not safe against concurrent changes.
+     */
+    public Iterator<Map.Entry<K, V>> iterator(K from, K to) {
+        return new Iterator<Map.Entry<K, V>>() {
+
+            private Node<K, V> leaf = null;
+            private int index = 0;
+
+            {
+                if (root != null) {
+                    leaf = from == null ? getSmallestNode(root) : findLeaf(from);
+                    index = from == null ? 0 : leaf.lowerBound(from);
+                    skipExhaustedLeaves();
+                }
+            }
+
+            private void skipExhaustedLeaves() {
+                while (leaf != null && index == leaf.keysSize) {
+                    leaf = leaf.next;
+                    index = 0;
+                }
+                if (leaf != null && to != null && leaf.keys[index].compareTo(to) >= 0)
+                    leaf = null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return leaf != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (leaf == null)
+                    throw new NoSuchElementException();
+                Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(leaf.keys[index], leaf.values[index]);
+                index++;
+                skipExhaustedLeaves();
+                return entry;
+            }
+        };
+    }
+
+    private Node<K, V> getSmallestNode(Node<K, V> nodeToGet) {
+        Node<K, V> node = nodeToGet;
+        while (!node.isLeaf())
+            node = node.children[0];
+        return node;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Validate the map according to the B+Tree invariants, including that the
+     * leaf chain visits every leaf in key order.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        if (root == null) return true;
+        Node<K, V> first = getSmallestNode(root);
+        int depth = 0;
+        for (Node<K, V> node = root; !node.isLeaf(); node = node.children[0])
+            depth++;
+        // the chain is checked leaf by leaf while the tree is walked in order
+        Object[] chain = { first };
+        if (!validateNode(root, true, null, null, depth, chain))
+            return false;
+        if (chain[0] != null)
+            return false;
+
+        int entries = 0;
+        K previous = null;
+        for (Node<K, V> leaf = first; leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.keysSize; i++) {
+                if (previous != null && previous.compareTo(leaf.keys[i]) >= 0)
+                    return false;
+                previous = leaf.keys[i];
+                entries++;
+            }
+        }
+        return entries == size;
+    }
+
+    // Keys of node must lie in [lower, upper), null meaning unbounded
+    private boolean validateNode(Node<K, V> node, boolean isRoot, K lower, K upper, int depth, Object[] chain) {
+        int keySize = node.keysSize;
+        for (int i = 1; i < keySize; i++) {
+            // keys of a map are unique, and so are separators
+            if (node.keys[i - 1].compareTo(node.keys[i]) >= 0)
+                return false;
+        }
+        if (keySize > maxKeySize)
+            return false;
+        if (!isRoot && keySize < minKeySize)
+            return false;
+        if (keySize > 0 && lower != null && node.keys[0].compareTo(lower) < 0)
+            return false;
+        if (keySize > 0 && upper != null && node.keys[keySize - 1].compareTo(upper) >= 0)
+            return false;
+        if (node.isLeaf()) {
+            if (depth != 0 || chain[0] != node)
+                return false;
+            chain[0] = node.next;
+            return true;
+        }
+
+        int childrenSize = node.childrenSize;
+        if (keySize != childrenSize - 1)
+            return false;
+        if (!isRoot && childrenSize < minChildrenSize)
+            return false;
+        if (childrenSize > maxChildrenSize)
+            return false;
+        for (int i = 0; i < childrenSize; i++) {
+            K childLower = i == 0 ? lower : node.keys[i - 1];
+            K childUpper = i == keySize ? upper : node.keys[i];
+            if (!validateNode(node.children[i], false, childLower, childUpper, depth - 1, chain))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (root == null) return "Tree has no nodes.";
+        return getString(root, "", true);
+    }
+
+    private static <K extends Comparable<K>, V> String getString(Node<K, V> node, String prefix, boolean isTail) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(prefix).append((isTail ? "└── " : "├── "));
+        for (int i = 0; i < node.keysSize; i++) {
+            builder.append(node.keys[i]);
+            if (node.isLeaf())
+                builder.append('=').append(node.values[i]);
+            if (i < node.keysSize - 1)
+                builder.append(", ");
+        }
+        builder.append("\n");
+
+        for (int i = 0; i < node.childrenSize; i++) {
+            boolean last = i == node.childrenSize - 1;
+            builder.append(getString(node.children[i], prefix + (isTail ? "    " : "│   "), last));
+        }
+
+        return builder.toString();
+    }
+
+    private static class Node<K extends Comparable<K>, V> extends MapNode<K, V, Node<K, V>> {
+
+        // next leaf to the right, null for the last leaf and internal nodes
+        private Node<K, V> next = null;
+
+        // internal nodes hold no values
+        private Node(int maxKeySize, boolean leaf) {
+            super(maxKeySize, leaf);
+        }
+
+        @Override
+        Node<K, V>[] newChildren(int length) {
+            return new Node[length];
+        }
+
+        @Override
+        void splitChild(int i, int median, Node<K, V> sibling) {
+            Node<K, V> child = children[i];
+            if (!child.isLeaf()) {
+                super.splitChild(i, median, sibling);
+                return;
+            }
+            // the leaf keeps its entries, a copy of sibling's first key goes up
+            sibling.appendEntries(child, median + 1, child.keysSize);
+            child.truncate(median + 1, 0);
+            sibling.next = child.next;
+            child.next = sibling;
+            insertChildAt(i + 1, sibling);
+            insertAt(i, sibling.keys[0], null);
+        }
+
+        @Override
+        void shiftFromLeft(int leftIndex) {
+            Node<K, V> left = children[leftIndex];
+            if (!left.isLeaf()) {
+                super.shiftFromLeft(leftIndex);
+                return;
+            }
+            Node<K, V> right = children[leftIndex + 1];
+            int last = left.keysSize - 1;
+            right.insertAt(0, left.keys[last], left.values[last]);
+            left.removeAt(last);
+            keys[leftIndex] = right.keys[0];
+        }
+
+        @Override
+        void shiftFromRight(int leftIndex) {
+            Node<K, V> left = children[leftIndex];
+            if (!left.isLeaf()) {
+                super.shiftFromRight(leftIndex);
+                return;
+            }
+            Node<K, V> right = children[leftIndex + 1];
+            left.insertAt(left.keysSize, right.keys[0], right.values[0]);
+            right.removeAt(0);
+            keys[leftIndex] = right.keys[0];
+        }
+
+        // Leaves drop the separator instead of pulling it down
+        @Override
+        Node<K, V> mergeChildren(int leftIndex) {
+            Node<K, V> left = children[leftIndex];
+            if (!left.isLeaf())
+                return super.mergeChildren(leftIndex);
+            Node<K, V> right = children[leftIndex + 1];
+            left.appendEntries(right, 0, right.keysSize);
+            left.next = right.next;
+            removeAt(leftIndex);
+            removeChildAt(leftIndex + 1);
+            return left;
+        }
+    }
+}
@@ -1,8 +1,25 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @SuppressWarnings("unchecked")
-public class BTree<T extends Comparable<T>> {
+public class BTree<T extends Comparable<T>> implements Iterable<T> {
 
     // Default to 2-3 Tree
     private int minKeySize = 1;
@@ -10,13 +27,38 @@ public class BTree<T extends Comparable<T>> {
     private int maxKeySize = 2 * (minKeySize + 1) - 1; // 2
     private int maxChildrenSize = maxKeySize + 1; // 3
 
+    // Nodes with at most this many keys left in the search window are
+    // scanned linearly instead of bisected further, unless the tree was
+    // built with another threshold. Shared with LongBTree and IntBTree.
+    public static final int DEFAULT_LINEAR_SEARCH_THRESHOLD = 8;
+    // parallel tasks stop splitting at this many nodes or keys
+    private static final int PARALLEL_GRAIN = 1 << 12;
+
+    // final, so searches on any thread see the value the tree was built with
+    private final int linearSearchThreshold;
+
     private Node<T> root = null;
     private int size = 0;
 
+    // Bumped by every snapshot. Nodes stamped with an older generation may be
+    // shared with a snapshot and are copied before they are modified.
+    private int generation = 0;
+
+    // Nodes freed by splits and merges, handed out again by newNode()
+    private final ArrayDeque<Node<T>> nodePool = new ArrayDeque<Node<T>>();
+    private int nodePoolSize = 0;
+    private long nodesAllocated = 0;
+    private long nodesReused = 0;
+
+    // null unless metrics were attached, every hook checks it first
+    private BTreeMetrics metrics = null;
+
     /**
      * Constructor for B-Tree which defaults to a 2-3 B-Tree.
      */
-    public BTree() { }
+    public BTree() {
+        this.linearSearchThreshold = DEFAULT_LINEAR_SEARCH_THRESHOLD;
+    }
 
     /**
      * Constructor for B-Tree of ordered parameter. Order here means minimum 
@@ -26,64 +68,167 @@ public class BTree<T extends Comparable<T>> {
      *            of the B-Tree.
      */
     public BTree(int order) {
+        this(order, DEFAULT_LINEAR_SEARCH_THRESHOLD);
+    }
+
+    /**
+     * Constructor for B-Tree of ordered parameter with its own in-node search
+     * threshold. Large orders with cheap comparisons favour a higher one.
+     * 
+     * @param order
+     *            of the B-Tree.
+     * @param linearSearchThreshold
+     *            number of keys below which a node search stops bisecting
+     *            and scans, zero means a pure binary search.
+     */
+    public BTree(int order, int linearSearchThreshold) {
+        if (linearSearchThreshold < 0)
+            throw new IllegalArgumentException("linearSearchThreshold must not be negative");
+        this.linearSearchThreshold = linearSearchThreshold;
     	this.minKeySize = order - 1;
         this.minChildrenSize = minKeySize + 1;
         this.maxKeySize = 2 * (minKeySize + 1) - 1;
         this.maxChildrenSize = maxKeySize + 1;
     }
-    
+
+    /**
+     * Keep up to poolSize of the nodes that splits and merges free, and reuse
+     * them together with their key and children arrays instead of allocating
+     * new ones. Zero, the default, turns recycling off.
+     * 
+     * @param poolSize
+     *            maximum number of idle nodes kept.
+     */
+    public void setNodePoolSize(int poolSize) {
+        if (poolSize < 0)
+            throw new IllegalArgumentException("poolSize must not be negative");
+        nodePoolSize = poolSize;
+        while (nodePool.size() > poolSize)
+            nodePool.pop();
+    }
+
+    /**
+     * @return number of nodes created since the tree was constructed.
+     */
+    public long nodesAllocated() {
+        return nodesAllocated;
+    }
+
+    /**
+     * @return number of nodes taken from the pool instead of being created.
+     */
+    public long nodesReused() {
+        return nodesReused;
+    }
+
+    /**
+     * Attach metrics that count splits and merges and time the public
+     * operations. Without metrics, the default, every hook is a single null
+     * check.
+     * 
+     * @param metrics
+     *            to record into, may be shared by several trees, null to
+     *            turn recording off.
+     */
+    public void setMetrics(BTreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return attached metrics or null.
+     */
+    public BTreeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Walk the tree for its height, node count and fill factor, store them in
+     * the attached metrics for JMX and return a snapshot of everything. Like
+     * every other method it must not run concurrently with modifications.
+     * 
+     * @return snapshot of the metrics and the tree shape.
+     * @throws IllegalStateException
+     *             if no metrics are attached.
+     */
+    public BTreeMetrics.Snapshot stats() {
+        if (metrics == null)
+            throw new IllegalStateException("no metrics attached, see setMetrics");
+        int height = 0;
+        long nodes = 0;
+        if (root != null) {
+            for (Node<T> node = root; node != null; node = node.getChild(0))
+                height++;
+            ArrayDeque<Node<T>> pending = new ArrayDeque<Node<T>>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node<T> node = pending.pop();
+                nodes++;
+                for (int i = 0; i < node.numberOfChildren(); i++)
+                    pending.push(node.getChild(i));
+            }
+        }
+        long keys = root == null ? 0 : root.count;
+        double fillFactor = nodes == 0 ? 0 : (double) keys / (nodes * maxKeySize);
+        metrics.shape(new BTreeMetrics.Shape(size, height, nodes, keys, fillFactor));
+        return metrics.snapshot();
+    }
+
+    private long startOp() {
+        return metrics == null ? -1 : metrics.start();
+    }
+
+    private void endOp(BTreeMetrics.Op op, long start) {
+        if (metrics != null)
+            metrics.record(op, start);
+    }
+
+    private void count(BTreeMetrics.Event event) {
+        if (metrics != null)
+            metrics.increment(event);
+    }
+
     //Task 2.1
     public boolean insert(T value) {
     	
+    	long start = startOp();
     	Node <T> r = root;
     	
     	//root is null
     	if(r == null) {
-    		r = new Node<T>(null, maxKeySize, maxChildrenSize);
+    		r = newNode();
             r.addKey(value);
+            r.count = 1;
             root = r;
     	}
     	
     	//root is full (in case a 2pass insert was performed)
     	else if (r.numberOfKeys() == maxKeySize) {
-    		Node<T> s = new Node<T>(null,maxKeySize,maxChildrenSize);
+    		Node<T> s = newNode();
         	root = s;
         	s.keysSize = 0;
         	s.addChild(r);
+        	s.count = r.count;
         	splitChild(s, 0);
         	insertNonFull(s, value);
     	}
     	
     	//root isn't null and isn't full
     	else {
-    		insertNonFull(r, value);
+    		insertNonFull(writable(r), value);
     	}
         size++;
+        endOp(BTreeMetrics.Op.INSERT, start);
 		return true;
     }
     	
     private void insertNonFull(Node<T> x, T k) {
     	
-    	int i = x.numberOfKeys();
-    	
-    	//x is a leaf and isn't full
-    	if (x.numberOfChildren() == 0) {
-    		
-    		while ((i >= 1) && (k.compareTo(x.getKey(i-1)) < 0)) {
-    			x.keys[i] = x.keys[i-1];
-    			i = i - 1;
-    		}
-    		x.keys[i] = k;
-    		x.keysSize = x.keysSize + 1;
-    	}
-    	
-    	//x has children
-    	else {
+    	//x has children and isn't full
+    	while (x.numberOfChildren() > 0) {
     		
-    		//x isn't full
-    		while ((i >= 1) && (k.compareTo(x.getKey(i-1)) <= 0)) {
-    			i = i - 1;
-    		}
+    		//k ends up somewhere below x
+    		x.count++;
+    		int i = x.lowerBound(k);
     			
     		//if x child is full split it before entering it
     		if (x.getChild(i).numberOfKeys() == maxKeySize) {
@@ -93,64 +238,46 @@ public class BTree<T extends Comparable<T>> {
     				i = i + 1;
     			}
     		}
-    		insertNonFull(x.getChild(i), k);  
+    		x = writable(x.getChild(i));
     	}
+    	
+    	//x is a leaf and isn't full
+    	x.insertKeyAt(x.upperBound(k), k);
+    	x.count++;
     }    
     
     private void splitChild(Node<T> x, int i) {
-    	Node<T> y = x.getChild(i);
-    	Node<T> z = new Node<T>(null,maxKeySize,maxChildrenSize);
-    	
-    	for(int j = 0; j < minKeySize; j++) {
-    		z.addKey(y.getKey(j + (minKeySize + 1)));
-    	}
-    	
-    	// the missing step (deleting y keys that moved to z)
-    	for(int j = 0; j < minKeySize; j++) {
-    		y.removeKey(minKeySize + 1);
-    	}
+    	count(BTreeMetrics.Event.SPLIT_CHILD);
+    	Node<T> y = writable(x.getChild(i));
+    	Node<T> z = newNode();
     	
+    	// move the upper half of y's keys and children to z in one block each
+    	z.appendKeys(y, minKeySize + 1, y.numberOfKeys());
     	if(y.numberOfChildren() != 0) {
-    		for(int j = 0; j < minKeySize + 1; j++) {
-    			z.addChild(y.getChild(j + (minKeySize + 1)));
-    		}
-    		
-    		// the missing step (deleting y children that moved to z)
-    		for(int j = 0; j < minKeySize + 1; j++) {
-    			y.removeChild(y.childrenSize - 1);
-    		}
-    	}
-    	for(int j = x.numberOfChildren(); j > i; j--) {
-    		x.children[j] = x.children[j - 1];
-    	}
-    	
-    	//the missing step (adding z to index i at x children manually)
-    	z.parent = x;
-    	x.childrenSize++;
-        x.children[i] = z;
-        
-        Arrays.sort(x.children, 0, x.childrenSize, x.comparator);
-    	
-    	for(int j = x.numberOfKeys(); j > i; j--) {
-    		x.keys[j] = x.keys[j - 1];
+    		z.appendChildren(y, minKeySize + 1, y.numberOfChildren());
     	}
     	
-    	x.keys[i] = y.keys[minKeySize];
-    	y.removeKey(minKeySize);
-    	x.keysSize = x.keysSize + 1;
+    	//z takes the slot right after y, the median goes up between them
+    	x.insertChildAt(i + 1, z);
+    	x.insertKeyAt(i, y.getKey(minKeySize));
+    	y.truncate(minKeySize, y.numberOfChildren() == 0 ? 0 : minKeySize + 1);
+    	//x keeps its count, the median moved up from y
+    	y.recount();
+    	z.recount();
     	
     }
     
     public T delete(T value) {
     	
-    	Node <T> r = root;
+    	long start = startOp();
+    	Node <T> r = writable(root);
 
         int pre_suc_factor=0;
         while(true) {
             if(r.indexOf(value)==-1) {
                 //searching for the node that contains "value"
                 int next_child_index = r.get_closest_child_to_target(value)+pre_suc_factor;
-                r=r.getChild(next_child_index);
+                r=writable(r.getChild(next_child_index));
                 r= fix_node_size_delete(r);
                 pre_suc_factor=0;
                 continue;
@@ -158,8 +285,14 @@ public class BTree<T extends Comparable<T>> {
             else {
                 if(r.is_leaf()) {
                 	T deletedKey = r.removeKey(value);
-                	if (deletedKey != null)
+                	if (deletedKey != null) {
                 		size--;
+                		addToCounts(r, -1);
+                		// as in remove, an empty tree has no root
+                		if (r == root && r.numberOfKeys() == 0)
+                			root = null;
+                	}
+                    endOp(BTreeMetrics.Op.DELETE, start);
                     return deletedKey;
                 }
                 if(switch_places_with_predecessor(value,r)) {
@@ -182,6 +315,7 @@ public class BTree<T extends Comparable<T>> {
         Node<T> predecessor_node = get_predecessor_node(value,curr_node);
         if (predecessor_node==null)
             return false;
+        predecessor_node = writable(predecessor_node);
 
         //switch places with predecessor and delete
         curr_node.addKey(predecessor_node.getKey(predecessor_node.numberOfKeys()-1));
@@ -207,6 +341,7 @@ public class BTree<T extends Comparable<T>> {
         Node<T> successor_node = get_successor_node(value,curr_node);
         if (successor_node==null)
             return false;
+        successor_node = writable(successor_node);
 
         //switch places with successor and delete
         curr_node.addKey(successor_node.getKey(0));
@@ -231,8 +366,10 @@ public class BTree<T extends Comparable<T>> {
 
     private Node<T> fix_node_size_delete(Node<T> node) {
         if(node.numberOfKeys()==minKeySize) {
-            if (try_shift(node))
+            if (try_shift(node)) {
+                count(BTreeMetrics.Event.DELETE_SHIFT);
                 return node;
+            }
             return merge_with_adjacent_node(node);
         }
         return node;
@@ -249,20 +386,16 @@ public class BTree<T extends Comparable<T>> {
     }
 
     private Node<T> merge_two_nodes(Node<T> left_node, T midKey,Node<T> right_node) {
-        Node<T> new_node = new Node<T>(left_node.parent,maxKeySize, maxChildrenSize);
-        for(int i=0;i<left_node.numberOfKeys();i++) {
-            new_node.addKey(left_node.getKey(i));
-            new_node.addChild(left_node.getChild(i));
-        }
-        new_node.addChild(left_node.getChild(left_node.numberOfKeys()));
-        new_node.addKey(midKey);
-
-        for(int i=0;i<left_node.numberOfKeys();i++) {
-            new_node.addKey(right_node.getKey(i));
-            new_node.addChild(right_node.getChild(i));
-        }
-        new_node.addChild(right_node.getChild(left_node.numberOfKeys()));
-
+        Node<T> new_node = newNode();
+        new_node.parent = left_node.parent;
+        new_node.appendKeys(left_node, 0, left_node.numberOfKeys());
+        new_node.appendChildren(left_node, 0, left_node.numberOfChildren());
+        new_node.insertKeyAt(new_node.numberOfKeys(), midKey);
+        new_node.appendKeys(right_node, 0, right_node.numberOfKeys());
+        new_node.appendChildren(right_node, 0, right_node.numberOfChildren());
+        new_node.count = left_node.count + 1 + right_node.count;
+        recycle(left_node);
+        recycle(right_node);
         return new_node;
     }
 
@@ -274,14 +407,17 @@ public class BTree<T extends Comparable<T>> {
     }
 
     private Node<T> perform_merge_and_update_tree(Node<T> parent,Node<T> right_node,Node<T> left_node,T mid_key) {
+        count(BTreeMetrics.Event.DELETE_MERGE);
         parent.removeChild(right_node);
         parent.removeChild(left_node);
         parent.removeKey(mid_key);
         Node<T> new_child = merge_two_nodes(left_node,mid_key,right_node);
 
-        if(root.numberOfKeys()==0)
+        if(root.numberOfKeys()==0) {
+            // the emptied root is dropped, the merged node takes its place
+            new_child.parent = null;
             root=new_child;
-        else
+        } else
             parent.addChild(new_child);
         return new_child;
     }
@@ -317,8 +453,8 @@ public class BTree<T extends Comparable<T>> {
     }
     
     private void shift_from_right(Node<T> parent,int left_child_index) {
-        Node<T> right_node = parent.getChild(left_child_index+1);
-        Node<T> left_node = parent.getChild(left_child_index);
+        Node<T> right_node = writable(parent.getChild(left_child_index+1));
+        Node<T> left_node = writable(parent.getChild(left_child_index));
 
         T value_removed_from_right = right_node.removesmallestKey();
         Node<T> child_removed_from_right = right_node.removeSmallestchiled();
@@ -326,6 +462,8 @@ public class BTree<T extends Comparable<T>> {
         parent.addKey(value_removed_from_right);
         left_node.addKey(value_removed_from_parent);
         left_node.addChild(child_removed_from_right);
+        left_node.recount();
+        right_node.recount();
     }
     
     private boolean try_shift_from_left(Node<T> parent,int right_child_index) {
@@ -339,8 +477,8 @@ public class BTree<T extends Comparable<T>> {
     }
     
     private void shift_from_left(Node<T> parent,int left_child_index) {
-        Node<T> right_node = parent.getChild(left_child_index+1);
-        Node<T> left_node = parent.getChild(left_child_index);
+        Node<T> right_node = writable(parent.getChild(left_child_index+1));
+        Node<T> left_node = writable(parent.getChild(left_child_index));
 
         T value_removed_from_left = left_node.removeBiggestKey();
         Node<T> child_removed_from_left = left_node.removeBiggestchiled();
@@ -348,58 +486,54 @@ public class BTree<T extends Comparable<T>> {
         parent.addKey(value_removed_from_left);
         right_node.addKey(value_removed_from_parent);
         right_node.addChild(child_removed_from_left);
+        left_node.recount();
+        right_node.recount();
     }
     
 	//Task 2.2
     public boolean insert2pass(T value) {
     	
+    	long start = startOp();
     	Node <T> r = root;
     	
     	//root is null
     	if(r == null) {
-    		r = new Node<T>(null, maxKeySize, maxChildrenSize);
+    		r = newNode();
             r.addKey(value);
+            r.count = 1;
             root = r;
     	}
     	
     	//root isn't null
     	else {
-    		insertNonFull2Pass(r, value);
+    		insertNonFull2Pass(writable(r), value);
     	}
         size++;
+        endOp(BTreeMetrics.Op.INSERT_2PASS, start);
 		return true;
     }
     
     private void insertNonFull2Pass(Node<T> x, T k) {
     	
-    	int i = x.numberOfKeys();
-    	
-    	//x is a leaf
-    	if(x.numberOfChildren() == 0) {
+    	while (true) {
     		
-    		//x has max number of keys - need to split before insertion
+    		//x has children
+    		if (x.numberOfChildren() > 0) {
+    			x = writable(x.getChild(x.lowerBound(k)));
+    			continue;
+    		}
+    		
+    		//x is a leaf with max number of keys - split and descend again from its parent
     		if (x.numberOfKeys() == maxKeySize) {
     			splitNode2Pass(x);
-        		insertNonFull2Pass(x.parent, k);
-    		}
-    		else {
-    			while ((i >= 1) && (k.compareTo(x.getKey(i-1)) < 0)) {
-    				x.keys[i] = x.keys[i-1];
-    				i = i - 1;
-    			}
-    			x.keys[i] = k;
-    			x.keysSize = x.keysSize + 1;
-    			//disk write
-    		}
-    	}
-    	
-    	//x has children
-    	else {
-    		while ((i >= 1) && (k.compareTo(x.getKey(i-1)) <= 0)) {
-    			i = i - 1;
+    			x = x.parent;
+    			continue;
     		}
     		
-    		insertNonFull2Pass(x.getChild(i), k);    		
+    		x.insertKeyAt(x.upperBound(k), k);
+    		addToCounts(x, 1);
+    		//disk write
+    		return;
     	}
     }
     
@@ -415,10 +549,11 @@ public class BTree<T extends Comparable<T>> {
 			//x is the root 
 			else {
 				Node <T> r = root;
-				Node<T> s = new Node<T>(null,maxKeySize,maxChildrenSize);
+				Node<T> s = newNode();
     			root = s;
     			s.keysSize = 0;
     			s.addChild(r);
+    			s.count = r.count;
     			splitChild2Pass(s, 0);
 			}
 		}
@@ -427,60 +562,40 @@ public class BTree<T extends Comparable<T>> {
     //doesn't split if x goes max sized
     private void splitChild2Pass(Node<T> x, int i) {
     	
-    	Node<T> y = x.getChild(i);
-    	Node<T> z = new Node<T>(null,maxKeySize,maxChildrenSize);
-    	
-    	for(int j = 0; j < minKeySize; j++) {
-    		z.addKey(y.getKey(j + (minKeySize + 1)));
-    	}
-    	
-    	// the missing step (deleting y keys that moved to z)
-    	for(int j = 0; j < minKeySize; j++) {
-    		y.removeKey(minKeySize + 1);
-    	}
+    	count(BTreeMetrics.Event.SPLIT_CHILD);
+    	Node<T> y = writable(x.getChild(i));
+    	Node<T> z = newNode();
     	
+    	// move the upper half of y's keys and children to z in one block each
+    	z.appendKeys(y, minKeySize + 1, y.numberOfKeys());
     	if(y.numberOfChildren() != 0) {
-    		for(int j = 0; j < minKeySize + 1; j++) {
-    			z.addChild(y.getChild(j + (minKeySize + 1)));
-    		}
-    		
-    		// the missing step (deleting y children that moved to z)
-    		for(int j = 0; j < minKeySize + 1; j++) {
-    			y.removeChild(y.childrenSize - 1);
-    		}
-    	}
-    	for(int j = x.numberOfChildren(); j > i; j--) {
-    		x.children[j] = x.children[j - 1];
-    	}
-    	
-    	//the missing step (adding z to index i at x children manually)
-    	z.parent = x;
-    	x.childrenSize++;
-        x.children[i] = z;
-        
-        Arrays.sort(x.children, 0, x.childrenSize, x.comparator);
-    	
-    	for(int j = x.numberOfKeys(); j > i; j--) {
-    		x.keys[j] = x.keys[j - 1];
+    		z.appendChildren(y, minKeySize + 1, y.numberOfChildren());
     	}
     	
-    	x.keys[i] = y.keys[minKeySize];
-    	y.removeKey(minKeySize);
-    	x.keysSize = x.keysSize + 1;
+    	//z takes the slot right after y, the median goes up between them
+    	x.insertChildAt(i + 1, z);
+    	x.insertKeyAt(i, y.getKey(minKeySize));
+    	y.truncate(minKeySize, y.numberOfChildren() == 0 ? 0 : minKeySize + 1);
+    	//x keeps its count, the median moved up from y
+    	y.recount();
+    	z.recount();
     }      
     
     /**
      * {@inheritDoc}
      */
     public boolean add(T value) {
+        long start = startOp();
         if (root == null) {
-            root = new Node<T>(null, maxKeySize, maxChildrenSize);
+            root = newNode();
             root.addKey(value);
+            root.count = 1;
         } else {
-            Node<T> node = root;
+            Node<T> node = writable(root);
             while (node != null) {
                 if (node.numberOfChildren() == 0) {
                     node.addKey(value);
+                    addToCounts(node, 1);
                     if (node.numberOfKeys() <= maxKeySize) {
                         // A-OK
                         break;
@@ -489,37 +604,13 @@ public class BTree<T extends Comparable<T>> {
                     split(node);
                     break;
                 }
-                // Navigate
-
-                // Lesser or equal
-                T lesser = node.getKey(0);
-                if (value.compareTo(lesser) <= 0) {
-                    node = node.getChild(0);
-                    continue;
-                }
-
-                // Greater
-                int numberOfKeys = node.numberOfKeys();
-                int last = numberOfKeys - 1;
-                T greater = node.getKey(last);
-                if (value.compareTo(greater) > 0) {
-                    node = node.getChild(numberOfKeys);
-                    continue;
-                }
-
-                // Search internal nodes
-                for (int i = 1; i < node.numberOfKeys(); i++) {
-                    T prev = node.getKey(i - 1);
-                    T next = node.getKey(i);
-                    if (value.compareTo(prev) > 0 && value.compareTo(next) <= 0) {
-                        node = node.getChild(i);
-                        break;
-                    }
-                }
+                // Navigate to the child left of the first key greater or equal
+                node = writable(node.getChild(node.lowerBound(value)));
             }
         }
 
         size++;
+        endOp(BTreeMetrics.Op.ADD, start);
 
         return true;
     }
@@ -531,49 +622,47 @@ public class BTree<T extends Comparable<T>> {
      *            to split.
      */
     private void split(Node<T> nodeToSplit) {
+        count(BTreeMetrics.Event.SPLIT);
         Node<T> node = nodeToSplit;
         int numberOfKeys = node.numberOfKeys();
         int medianIndex = numberOfKeys / 2;
         T medianValue = node.getKey(medianIndex);
 
-        Node<T> left = new Node<T>(null, maxKeySize, maxChildrenSize);
-        for (int i = 0; i < medianIndex; i++) {
-            left.addKey(node.getKey(i));
-        }
+        Node<T> left = newNode();
+        left.appendKeys(node, 0, medianIndex);
         if (node.numberOfChildren() > 0) {
-            for (int j = 0; j <= medianIndex; j++) {
-                Node<T> c = node.getChild(j);
-                left.addChild(c);
-            }
+            left.appendChildren(node, 0, medianIndex + 1);
         }
 
-        Node<T> right = new Node<T>(null, maxKeySize, maxChildrenSize);
-        for (int i = medianIndex + 1; i < numberOfKeys; i++) {
-            right.addKey(node.getKey(i));
-        }
+        Node<T> right = newNode();
+        right.appendKeys(node, medianIndex + 1, numberOfKeys);
         if (node.numberOfChildren() > 0) {
-            for (int j = medianIndex + 1; j < node.numberOfChildren(); j++) {
-                Node<T> c = node.getChild(j);
-                right.addChild(c);
-            }
+            right.appendChildren(node, medianIndex + 1, node.numberOfChildren());
         }
+        left.recount();
+        right.recount();
 
         if (node.parent == null) {
             // new root, height of tree is increased
-            Node<T> newRoot = new Node<T>(null, maxKeySize, maxChildrenSize);
+            Node<T> newRoot = newNode();
             newRoot.addKey(medianValue);
+            newRoot.count = nodeToSplit.count;
             node.parent = newRoot;
             root = newRoot;
             node = root;
             node.addChild(left);
             node.addChild(right);
+            recycle(nodeToSplit);
         } else {
             // Move the median value up to the parent
             Node<T> parent = node.parent;
-            parent.addKey(medianValue);
-            parent.removeChild(node);
-            parent.addChild(left);
-            parent.addChild(right);
+            int index = parent.indexOf(node);
+            parent.insertKeyAt(index, medianValue);
+            // left takes the place of the split node, right goes after it
+            parent.children[index] = left;
+            left.parent = parent;
+            parent.insertChildAt(index + 1, right);
+            recycle(nodeToSplit);
             
             if (parent.numberOfKeys() > maxKeySize) split(parent);
         }
@@ -583,9 +672,11 @@ public class BTree<T extends Comparable<T>> {
      * {@inheritDoc}
      */
     public T remove(T value) {
+        long start = startOp();
         T removed = null;
-        Node<T> node = this.getNode(value);
+        Node<T> node = writable(this.getNode(value));
         removed = remove(value,node);
+        endOp(BTreeMetrics.Op.REMOVE, start);
         return removed;
     }
 
@@ -606,6 +697,7 @@ public class BTree<T extends Comparable<T>> {
         removed = node.removeKey(value);
         if (node.numberOfChildren() == 0) {
             // leaf node
+            addToCounts(node, -1);
             if (node.parent != null && node.numberOfKeys() < minKeySize) {
                 this.combined(node);
             } else if (node.parent == null && node.numberOfKeys() == 0) {
@@ -615,9 +707,11 @@ public class BTree<T extends Comparable<T>> {
         } else {
             // internal node
             Node<T> lesser = node.getChild(index);
-            Node<T> greatest = this.getGreatestNode(lesser);
+            Node<T> greatest = writable(this.getGreatestNode(lesser));
             T replaceValue = this.removeGreatestValue(greatest);
             node.addKey(replaceValue);
+            // node swapped one key for another, the key count dropped in greatest
+            addToCounts(greatest, -1);
             if (greatest.parent != null && greatest.numberOfKeys() < minKeySize) {
                 this.combined(greatest);
             }
@@ -647,163 +741,1095 @@ public class BTree<T extends Comparable<T>> {
     }
 
     /**
-     * {@inheritDoc}
+     * Add every value of a batch. The batch is sorted first so consecutive
+     * values that land in the same leaf are added there directly, and the
+     * tree is only descended again once a value passes the leaf's upper
+     * bound or the leaf had to be split.
+     * 
+     * @param values
+     *            to add.
+     * @return True.
      */
-    public void clear() {
-        root = null;
-        size = 0;
+    public boolean insertAll(Collection<? extends T> values) {
+        long start = startOp();
+        T[] batch = (T[]) values.toArray(new Comparable[values.size()]);
+        Arrays.sort(batch);
+
+        Node<T> leaf = null;
+        // greatest value the current leaf may hold, null means unbounded
+        T upper = null;
+        for (T value : batch) {
+            if (root == null)
+                root = newNode();
+            if (leaf == null || (upper != null && value.compareTo(upper) > 0)) {
+                leaf = root;
+                upper = null;
+                while (leaf.numberOfChildren() > 0) {
+                    int index = leaf.lowerBound(value);
+                    if (index < leaf.numberOfKeys())
+                        upper = leaf.getKey(index);
+                    leaf = leaf.getChild(index);
+                }
+                leaf = writable(leaf);
+            }
+            leaf.addKey(value);
+            addToCounts(leaf, 1);
+            size++;
+            if (leaf.numberOfKeys() > maxKeySize) {
+                split(leaf);
+                leaf = null;
+            }
+        }
+        endOp(BTreeMetrics.Op.INSERT_ALL, start);
+        return true;
     }
 
     /**
-     * {@inheritDoc}
+     * Remove every value of a batch. The batch is sorted first; values found
+     * in the current leaf while it has keys to spare are removed there
+     * directly, anything else is removed the way {@link #remove(Comparable)}
+     * does it.
+     * 
+     * @param values
+     *            to remove, one occurrence per element.
+     * @return number of values removed from the tree.
      */
-    public boolean contains(T value) {
-        Node<T> node = getNode(value);
-        return (node != null);
+    public int deleteAll(Collection<? extends T> values) {
+        long start = startOp();
+        T[] batch = (T[]) values.toArray(new Comparable[values.size()]);
+        Arrays.sort(batch);
+
+        int removed = 0;
+        Node<T> leaf = null;
+        T upper = null;
+        for (T value : batch) {
+            if (root == null)
+                break;
+            if (leaf == null || (upper != null && value.compareTo(upper) > 0)) {
+                leaf = root;
+                upper = null;
+                while (leaf.numberOfChildren() > 0) {
+                    int index = leaf.lowerBound(value);
+                    if (index < leaf.numberOfKeys())
+                        upper = leaf.getKey(index);
+                    leaf = leaf.getChild(index);
+                }
+                leaf = writable(leaf);
+            }
+            int index = leaf.indexOf(value);
+            int spare = leaf.parent == null ? 1 : minKeySize;
+            if (index != -1 && leaf.numberOfKeys() > spare) {
+                leaf.removeKey(index);
+                addToCounts(leaf, -1);
+                size--;
+                removed++;
+            } else if (remove(value, writable(getNode(value))) != null) {
+                // the leaf may have been combined away
+                removed++;
+                leaf = null;
+            }
+        }
+        endOp(BTreeMetrics.Op.DELETE_ALL, start);
+        return removed;
     }
 
     /**
-     * Get the node with value.
+     * Replace the contents of the tree with the keys of a sorted source.
+     * Leaves are filled left to right straight from the source and every
+     * internal level is then built from the level below, so no key goes
+     * through a root-to-leaf descent or a split. The new tree replaces the
+     * old one only once the whole source has been read, so a source that
+     * turns out not to be sorted leaves the tree as it was.
      * 
-     * @param value
-     *            to find in the tree.
-     * @return Node<T> with value.
+     * @param sorted
+     *            keys in non-decreasing order.
+     * @param fillFactor
+     *            fraction of maxKeySize to fill each node with, in (0, 1].
+     *            Nodes never get fewer than minKeySize keys whatever the
+     *            factor.
      */
-    private Node<T> getNode(T value) {
-        Node<T> node = root;
-        while (node != null) {
-            T lesser = node.getKey(0);
-            if (value.compareTo(lesser) < 0) {
-                if (node.numberOfChildren() > 0)
-                    node = node.getChild(0);
-                else
-                    node = null;
-                continue;
+    public void bulkLoad(Iterator<? extends T> sorted, double fillFactor) {
+        long start = startOp();
+        int fill = fillFor(fillFactor);
+
+        List<Node<T>> level = new ArrayList<Node<T>>();
+        // separators.get(i) sits between level.get(i) and level.get(i + 1)
+        List<T> separators = new ArrayList<T>();
+        Node<T> leaf = newNode();
+        level.add(leaf);
+        T previous = null;
+        int count = 0;
+        while (sorted.hasNext()) {
+            T value = sorted.next();
+            if (previous != null && previous.compareTo(value) > 0)
+                throw new IllegalArgumentException("bulkLoad source is not sorted at " + value);
+            previous = value;
+            count++;
+            if (leaf.numberOfKeys() < fill) {
+                leaf.insertKeyAt(leaf.numberOfKeys(), value);
+            } else {
+                // a full leaf is closed by the next key, which separates it from a new one
+                separators.add(value);
+                leaf = newNode();
+                level.add(leaf);
             }
+        }
+        Node<T> loaded = null;
+        if (count > 0) {
+            evenOutLastLeaf(level, separators);
+            loaded = buildLevels(level.toArray(new Node[level.size()]),
+                    (T[]) separators.toArray(new Comparable[separators.size()]), fill, null);
+        }
+        root = loaded;
+        size = count;
+        endOp(BTreeMetrics.Op.BULK_LOAD, start);
+    }
 
-            int numberOfKeys = node.numberOfKeys();
-            int last = numberOfKeys - 1;
-            T greater = node.getKey(last);
-            if (value.compareTo(greater) > 0) {
-                if (node.numberOfChildren() > numberOfKeys)
-                    node = node.getChild(numberOfKeys);
-                else
-                    node = null;
-                continue;
-            }
+    /**
+     * Replace the contents of the tree with the keys of an unsorted array,
+     * using every core of the common fork-join pool. The array is sorted in
+     * place with {@link Arrays#parallelSort(Object[])}, then the leaves and
+     * each internal level are filled by parallel tasks that each build a
+     * slice of the level. The tree is the same one bulkLoad builds from the
+     * sorted keys.
+     * 
+     * @param values
+     *            keys to load, sorted in place.
+     * @param fillFactor
+     *            fraction of maxKeySize to fill each node with, in (0, 1].
+     */
+    public void parallelBulkLoad(T[] values, double fillFactor) {
+        long start = startOp();
+        int fill = fillFor(fillFactor);
+        Arrays.parallelSort(values);
+
+        clear();
+        int count = values.length;
+        if (count == 0) {
+            endOp(BTreeMetrics.Op.PARALLEL_BULK_LOAD, start);
+            return;
+        }
+        // leaf j takes the fill keys from j * (fill + 1), the key after them separates it from leaf j + 1
+        int leaves = count / (fill + 1) + 1;
+        Node<T>[] level = new Node[leaves];
+        T[] separators = (T[]) new Comparable[leaves - 1];
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        forRange(leaves, pool, j -> {
+            int from = j * (fill + 1);
+            Node<T> leaf = freshNode();
+            leaf.appendKeys(values, from, Math.min(from + fill, count));
+            level[j] = leaf;
+            if (j < leaves - 1)
+                separators[j] = values[from + fill];
+        });
+        nodesAllocated += leaves;
+        size = count;
+
+        List<Node<T>> leafList = new ArrayList<Node<T>>(Arrays.asList(level));
+        List<T> separatorList = new ArrayList<T>(Arrays.asList(separators));
+        evenOutLastLeaf(leafList, separatorList);
+        root = buildLevels(leafList.toArray(new Node[leafList.size()]),
+                (T[]) separatorList.toArray(new Comparable[separatorList.size()]), fill, pool);
+        endOp(BTreeMetrics.Op.PARALLEL_BULK_LOAD, start);
+    }
 
-            for (int i = 0; i < numberOfKeys; i++) {
-                T currentValue = node.getKey(i);
-                if (currentValue.compareTo(value) == 0) {
-                    return node;
-                }
+    private int fillFor(double fillFactor) {
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("fillFactor must be in (0, 1]");
+        int fill = (int) Math.round(fillFactor * maxKeySize);
+        return Math.min(Math.max(fill, Math.max(minKeySize, 1)), maxKeySize);
+    }
 
-                int next = i + 1;
-                if (next <= last) {
-                    T nextValue = node.getKey(next);
-                    if (currentValue.compareTo(value) < 0 && nextValue.compareTo(value) > 0) {
-                        if (next < node.numberOfChildren()) {
-                            node = node.getChild(next);
-                            break;
-                        }
-                        return null;
-                    }
-                }
+    // only the last leaf can be short, even it out with its left neighbor
+    private void evenOutLastLeaf(List<Node<T>> level, List<T> separators) {
+        int last = level.size() - 1;
+        Node<T> leaf = level.get(last);
+        if (last > 0 && leaf.numberOfKeys() < minKeySize) {
+            Node<T> left = level.get(last - 1);
+            T separator = separators.get(last - 1);
+            int total = left.numberOfKeys() + 1 + leaf.numberOfKeys();
+            if (total <= maxKeySize) {
+                left.insertKeyAt(left.numberOfKeys(), separator);
+                left.appendKeys(leaf, 0, leaf.numberOfKeys());
+                separators.remove(last - 1);
+                level.remove(last);
+            } else {
+                // split the combined keys down the middle instead
+                int median = total / 2;
+                Node<T> right = newNode();
+                right.appendKeys(left, median + 1, left.numberOfKeys());
+                right.insertKeyAt(right.numberOfKeys(), separator);
+                right.appendKeys(leaf, 0, leaf.numberOfKeys());
+                separators.set(last - 1, left.getKey(median));
+                left.truncate(median, 0);
+                level.set(last, right);
             }
         }
-        return null;
     }
 
     /**
-     * Get the greatest valued child from node.
+     * Build every internal level on top of a level of leaves and return the
+     * root. Node j of a level takes a fixed slice of the level below, so the
+     * nodes of a level can be built in any order.
      * 
-     * @param nodeToGet
-     *            child with the greatest value.
-     * @return Node<T> child with greatest value.
+     * @param level
+     *            leaves in key order.
+     * @param separators
+     *            separators[i] sits between level[i] and level[i + 1].
+     * @param fill
+     *            keys to aim for per node.
+     * @param pool
+     *            to build each level in parallel with, null to build on this
+     *            thread.
+     * @return the root.
      */
-    private Node<T> getGreatestNode(Node<T> nodeToGet) {
-        Node<T> node = nodeToGet;
-        while (node.numberOfChildren() > 0) {
-            node = node.getChild(node.numberOfChildren() - 1);
+    private Node<T> buildLevels(Node<T>[] level, T[] separators, int fill, ForkJoinPool pool) {
+        Node<T>[] leaves = level;
+        forRange(leaves.length, pool, i -> leaves[i].recount());
+
+        while (level.length > 1) {
+            int count = level.length;
+            // as close to fill keys per node as the min/max children bounds allow
+            int n = (count + fill) / (fill + 1);
+            n = Math.max(n, (count + maxChildrenSize - 1) / maxChildrenSize);
+            int nodes = Math.max(1, Math.min(n, count / minChildrenSize));
+
+            Node<T>[] lower = level;
+            T[] lowerSeparators = separators;
+            Node<T>[] upper = new Node[nodes];
+            T[] upperSeparators = (T[]) new Comparable[nodes - 1];
+            forRange(nodes, pool, j -> {
+                Node<T> node = pool == null ? newNode() : freshNode();
+                // the first count % nodes nodes take one child more
+                int child = j * (count / nodes) + Math.min(j, count % nodes);
+                int children = count / nodes + (j < count % nodes ? 1 : 0);
+                node.insertChildAt(0, lower[child++]);
+                for (int c = 1; c < children; c++, child++) {
+                    node.insertKeyAt(node.numberOfKeys(), lowerSeparators[child - 1]);
+                    node.insertChildAt(node.numberOfChildren(), lower[child]);
+                }
+                node.recount();
+                if (child < count)
+                    upperSeparators[j] = lowerSeparators[child - 1];
+                upper[j] = node;
+            });
+            if (pool != null)
+                nodesAllocated += nodes;
+            level = upper;
+            separators = upperSeparators;
         }
-        return node;
+        return level[0];
     }
-    
-    //the opposite of getGreatestNode
-    private Node<T> getSmallestNode(Node<T> nodeToGet) {
-        Node<T> node = nodeToGet;
-        while (node.numberOfChildren() > 0) {
-            node = node.getChild(0);
+
+    /**
+     * Run action for every index in [0, count), split over the pool in
+     * slices of PARALLEL_GRAIN or on this thread when pool is null.
+     */
+    private static void forRange(int count, ForkJoinPool pool, IntConsumer action) {
+        if (pool == null || count <= PARALLEL_GRAIN) {
+            for (int i = 0; i < count; i++)
+                action.accept(i);
+        } else {
+            pool.invoke(new RangeTask(0, count, action));
+        }
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer action;
+
+        private RangeTask(int from, int to, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_GRAIN) {
+                for (int i = from; i < to; i++)
+                    action.accept(i);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, mid, action), new RangeTask(mid, to, action));
         }
-        return node;
     }
 
     /**
-     * Combined children keys with parent when size is less than minKeySize.
+     * Call action with every key, from the common fork-join pool. Subtrees
+     * with more than PARALLEL_GRAIN keys are split into one task per child,
+     * smaller ones are walked in order by a single task. The order action
+     * sees the keys in is unspecified and the tree must not be modified
+     * until this returns.
      * 
-     * @param node
-     *            with children to combined.
-     * @return True if combined successfully.
+     * @param action
+     *            to call with each key, from any thread.
      */
-    private boolean combined(Node<T> node) {
-        Node<T> parent = node.parent;
-        int index = parent.indexOf(node);
-        int indexOfLeftNeighbor = index - 1;
-        int indexOfRightNeighbor = index + 1;
+    public void parallelForEach(Consumer<? super T> action) {
+        if (root == null)
+            return;
+        ForkJoinPool.commonPool().invoke(new ForEachTask<T>(root, action));
+    }
 
-        Node<T> rightNeighbor = null;
-        int rightNeighborSize = -minChildrenSize;
-        if (indexOfRightNeighbor < parent.numberOfChildren()) {
-            rightNeighbor = parent.getChild(indexOfRightNeighbor);
-            rightNeighborSize = rightNeighbor.numberOfKeys();
+    /**
+     * Reduce the keys in key order, from the common fork-join pool. Each
+     * task folds a subtree with the accumulator starting from identity, and
+     * the results of neighbouring subtrees are merged with the combiner, as
+     * with {@link java.util.stream.Stream#reduce(Object, BiFunction, BinaryOperator)}.
+     * The tree must not be modified until this returns.
+     * 
+     * @param identity
+     *            for both the accumulator and the combiner.
+     * @param accumulator
+     *            folds one more key into a result.
+     * @param combiner
+     *            merges the results of a range and the range after it.
+     * @return reduction of every key, identity for an empty tree.
+     */
+    public <R> R parallelReduce(R identity, BiFunction<R, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+        if (root == null)
+            return identity;
+        return ForkJoinPool.commonPool().invoke(new ReduceTask<T, R>(root, identity, accumulator, combiner));
+    }
+
+    private static final class ForEachTask<T extends Comparable<T>> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<T> node;
+        private final Consumer<? super T> action;
+
+        private ForEachTask(Node<T> node, Consumer<? super T> action) {
+            this.node = node;
+            this.action = action;
         }
 
-        // Try to borrow neighbor
-        if (rightNeighbor != null && rightNeighborSize > minKeySize) {
-            // Try to borrow from right neighbor
-            T removeValue = rightNeighbor.getKey(0);
-            int prev = getIndexOfPreviousValue(parent, removeValue);
-            T parentValue = parent.removeKey(prev);
-            T neighborValue = rightNeighbor.removeKey(0);
-            node.addKey(parentValue);
-            parent.addKey(neighborValue);
-            if (rightNeighbor.numberOfChildren() > 0) {
-                node.addChild(rightNeighbor.removeChild(0));
+        @Override
+        protected void compute() {
+            // a leaf has no children to hand out, however many keys it holds
+            if (node.count <= PARALLEL_GRAIN || node.numberOfChildren() == 0) {
+                forEachInOrder(node, action);
+                return;
             }
-        } else {
-            Node<T> leftNeighbor = null;
-            int leftNeighborSize = -minChildrenSize;
-            if (indexOfLeftNeighbor >= 0) {
-                leftNeighbor = parent.getChild(indexOfLeftNeighbor);
-                leftNeighborSize = leftNeighbor.numberOfKeys();
+            ForEachTask<T>[] tasks = new ForEachTask[node.numberOfChildren()];
+            for (int i = 0; i < tasks.length; i++)
+                tasks[i] = new ForEachTask<T>(node.getChild(i), action);
+            invokeAll(tasks);
+            for (int i = 0; i < node.numberOfKeys(); i++)
+                action.accept(node.getKey(i));
+        }
+
+        private static <T extends Comparable<T>> void forEachInOrder(Node<T> node, Consumer<? super T> action) {
+            for (int i = 0; i < node.numberOfKeys(); i++) {
+                if (node.numberOfChildren() > 0)
+                    forEachInOrder(node.getChild(i), action);
+                action.accept(node.getKey(i));
             }
+            if (node.numberOfChildren() > 0)
+                forEachInOrder(node.getChild(node.numberOfKeys()), action);
+        }
+    }
 
-            if (leftNeighbor != null && leftNeighborSize > minKeySize) {
-                // Try to borrow from left neighbor
-                T removeValue = leftNeighbor.getKey(leftNeighbor.numberOfKeys() - 1);
-                int prev = getIndexOfNextValue(parent, removeValue);
-                T parentValue = parent.removeKey(prev);
-                T neighborValue = leftNeighbor.removeKey(leftNeighbor.numberOfKeys() - 1);
-                node.addKey(parentValue);
-                parent.addKey(neighborValue);
-                if (leftNeighbor.numberOfChildren() > 0) {
-                    node.addChild(leftNeighbor.removeChild(leftNeighbor.numberOfChildren() - 1));
-                }
-            } else if (rightNeighbor != null && parent.numberOfKeys() > 0) {
-                // Can't borrow from neighbors, try to combined with right neighbor
-                T removeValue = rightNeighbor.getKey(0);
-                int prev = getIndexOfPreviousValue(parent, removeValue);
-                T parentValue = parent.removeKey(prev);
-                parent.removeChild(rightNeighbor);
-                node.addKey(parentValue);
-                for (int i = 0; i < rightNeighbor.keysSize; i++) {
-                    T v = rightNeighbor.getKey(i);
-                    node.addKey(v);
+    private static final class ReduceTask<T extends Comparable<T>, R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<T> node;
+        private final R identity;
+        private final BiFunction<R, ? super T, R> accumulator;
+        private final BinaryOperator<R> combiner;
+
+        private ReduceTask(Node<T> node, R identity, BiFunction<R, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+            this.node = node;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected R compute() {
+            if (node.count <= PARALLEL_GRAIN || node.numberOfChildren() == 0)
+                return reduceInOrder(node, identity);
+            ReduceTask<T, R>[] tasks = new ReduceTask[node.numberOfChildren()];
+            for (int i = 0; i < tasks.length; i++)
+                tasks[i] = new ReduceTask<T, R>(node.getChild(i), identity, accumulator, combiner);
+            invokeAll(tasks);
+            // children and keys interleave in key order
+            R result = tasks[0].join();
+            for (int i = 0; i < node.numberOfKeys(); i++) {
+                result = accumulator.apply(result, node.getKey(i));
+                result = combiner.apply(result, tasks[i + 1].join());
+            }
+            return result;
+        }
+
+        private R reduceInOrder(Node<T> node, R result) {
+            for (int i = 0; i < node.numberOfKeys(); i++) {
+                if (node.numberOfChildren() > 0)
+                    result = reduceInOrder(node.getChild(i), result);
+                result = accumulator.apply(result, node.getKey(i));
+            }
+            if (node.numberOfChildren() > 0)
+                result = reduceInOrder(node.getChild(node.numberOfKeys()), result);
+            return result;
+        }
+    }
+
+    /**
+     * Spliterator over the keys in sorted order. It splits at child
+     * boundaries of the nodes, and every part knows its exact size from the
+     * subtree counts. Keys are not reported DISTINCT since the tree accepts
+     * duplicates. The tree must not be modified while it is in use.
+     * 
+     * @return spliterator over every key.
+     */
+    public Spliterator<T> spliterator() {
+        if (root == null)
+            return Spliterators.emptySpliterator();
+        return new NodeSpliterator<T>(root, 0, NodeSpliterator.length(root));
+    }
+
+    /**
+     * @return sequential stream of the keys in sorted order.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return parallel stream of the keys, split along subtrees.
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Covers the positions [from, to) of one node. An internal node with k
+     * keys has 2k + 1 positions, child i at 2i and key i at 2i + 1, a leaf
+     * just its k keys. Splitting happens only before traversal starts, so a
+     * part is always a plain range and the stack for walking it is only
+     * allocated once tryAdvance is called.
+     */
+    private static final class NodeSpliterator<T extends Comparable<T>> implements Spliterator<T> {
+
+        private Node<T> node;
+        private int from;
+        private int to;
+        private long remaining;
+        // walk state, null until tryAdvance is first called
+        private Node<T>[] nodes = null;
+        private int[] positions = null;
+        private int[] ends = null;
+        private int depth = -1;
+
+        private NodeSpliterator(Node<T> node, int from, int to) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.remaining = sizeOf(node, from, to);
+        }
+
+        private static <T extends Comparable<T>> int length(Node<T> node) {
+            int keys = node.numberOfKeys();
+            return node.numberOfChildren() == 0 ? keys : 2 * keys + 1;
+        }
+
+        private static <T extends Comparable<T>> long sizeOf(Node<T> node, int from, int to) {
+            if (node.numberOfChildren() == 0)
+                return to - from;
+            long size = 0;
+            for (int p = from; p < to; p++)
+                size += (p & 1) == 1 ? 1 : node.getChild(p >>> 1).count;
+            return size;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (nodes != null)
+                return null;
+            // a single child is replaced by the whole child, then split
+            while (to - from == 1 && node.numberOfChildren() > 0 && (from & 1) == 0) {
+                node = node.getChild(from >>> 1);
+                from = 0;
+                to = length(node);
+            }
+            if (to - from < 2)
+                return null;
+            int mid = (from + to) >>> 1;
+            // prefer a child boundary, so no part starts with a lone key
+            if (node.numberOfChildren() > 0 && (mid & 1) == 1 && mid + 1 < to)
+                mid++;
+            NodeSpliterator<T> prefix = new NodeSpliterator<T>(node, from, mid);
+            from = mid;
+            remaining -= prefix.remaining;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (nodes == null) {
+                int height = 1;
+                for (Node<T> n = node; n.numberOfChildren() > 0; n = n.getChild(0))
+                    height++;
+                nodes = new Node[height];
+                positions = new int[height];
+                ends = new int[height];
+                depth = 0;
+                nodes[0] = node;
+                positions[0] = from;
+                ends[0] = to;
+            }
+            while (depth >= 0) {
+                Node<T> n = nodes[depth];
+                int p = positions[depth];
+                if (p >= ends[depth]) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = p + 1;
+                if (n.numberOfChildren() == 0 || (p & 1) == 1) {
+                    remaining--;
+                    action.accept(n.getKey(n.numberOfChildren() == 0 ? p : p >>> 1));
+                    return true;
+                }
+                Node<T> child = n.getChild(p >>> 1);
+                if (depth + 1 == nodes.length) {
+                    // only reached if the leaves are not all at one depth
+                    nodes = Arrays.copyOf(nodes, depth + 2);
+                    positions = Arrays.copyOf(positions, depth + 2);
+                    ends = Arrays.copyOf(ends, depth + 2);
                 }
-                for (int i = 0; i < rightNeighbor.childrenSize; i++) {
-                    Node<T> c = rightNeighbor.getChild(i);
-                    node.addChild(c);
+                depth++;
+                nodes[depth] = child;
+                positions[depth] = 0;
+                ends[depth] = length(child);
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if (nodes != null) {
+                while (tryAdvance(action)) { }
+                return;
+            }
+            // nothing consumed yet, walk the range without a stack
+            forEachInRange(node, from, to, action);
+            from = to;
+            remaining = 0;
+        }
+
+        private static <T extends Comparable<T>> void forEachInRange(Node<T> node, int from, int to, Consumer<? super T> action) {
+            boolean leaf = node.numberOfChildren() == 0;
+            for (int p = from; p < to; p++) {
+                if (leaf)
+                    action.accept(node.getKey(p));
+                else if ((p & 1) == 1)
+                    action.accept(node.getKey(p >>> 1));
+                else
+                    forEachInRange(node.getChild(p >>> 1), 0, length(node.getChild(p >>> 1)), action);
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | SIZED | SUBSIZED | NONNULL;
+        }
+
+        @Override
+        public Comparator<? super T> getComparator() {
+            // natural order
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean contains(T value) {
+        long start = startOp();
+        Node<T> node = getNode(value);
+        endOp(BTreeMetrics.Op.CONTAINS, start);
+        return (node != null);
+    }
+
+    /**
+     * Iterate every key in order.
+     * 
+     * @return cursor positioned before the smallest key.
+     */
+    @Override
+    public Cursor<T> iterator() {
+        return new Cursor<T>(root, null, null);
+    }
+
+    /**
+     * Iterate the keys in [from, to) in order. The cursor descends once to
+     * the first key and then walks the tree lazily, so a scan costs
+     * O(log n + k) with no more memory than one root-to-leaf path.
+     * 
+     * @param from
+     *            smallest key to return, null for no lower bound.
+     * @param to
+     *            key to stop before, null for no upper bound.
+     * @return cursor positioned before the first key in range.
+     */
+    public Cursor<T> rangeScan(T from, T to) {
+        return new Cursor<T>(root, from, to);
+    }
+
+    /**
+     * View of the keys smaller than to. Nothing is copied, each iteration
+     * scans the tree as it is then.
+     * 
+     * @param to
+     *            key to stop before.
+     * @return view of the keys in [first, to).
+     */
+    public Iterable<T> headSet(T to) {
+        return () -> rangeScan(null, to);
+    }
+
+    /**
+     * View of the keys greater than or equal to from.
+     * 
+     * @param from
+     *            smallest key in the view.
+     * @return view of the keys in [from, last].
+     */
+    public Iterable<T> tailSet(T from) {
+        return () -> rangeScan(from, null);
+    }
+
+    /**
+     * View of the keys in [from, to).
+     * 
+     * @param from
+     *            smallest key in the view.
+     * @param to
+     *            key to stop before.
+     * @return view of the keys in range.
+     */
+    public Iterable<T> subSet(T from, T to) {
+        return () -> rangeScan(from, to);
+    }
+
+    /**
+     * Number of keys in the tree smaller than value, found in one descent by
+     * adding up the counts of the subtrees left of the path.
+     * 
+     * @param value
+     *            to rank, need not be in the tree.
+     * @return index value has or would have in sorted order.
+     */
+    public int rank(T value) {
+        int rank = 0;
+        Node<T> node = root;
+        while (node != null) {
+            int index = node.lowerBound(value);
+            rank += index;
+            for (int i = 0; i < index && i < node.numberOfChildren(); i++)
+                rank += node.getChild(i).count;
+            node = node.getChild(index);
+        }
+        return rank;
+    }
+
+    /**
+     * Key at index in sorted order, found in one descent by skipping whole
+     * subtrees by their counts.
+     * 
+     * @param index
+     *            of the key, 0 for the smallest.
+     * @return key at index.
+     * @throws IndexOutOfBoundsException
+     *             if index is not in [0, size()).
+     */
+    public T select(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + " size " + size);
+        Node<T> node = root;
+        while (node.numberOfChildren() > 0) {
+            int i = 0;
+            while (index >= node.getChild(i).count + 1) {
+                index -= node.getChild(i).count + 1;
+                i++;
+            }
+            if (index == node.getChild(i).count)
+                return node.getKey(i);
+            node = node.getChild(i);
+        }
+        return node.getKey(index);
+    }
+
+    /**
+     * Number of keys in [from, to).
+     * 
+     * @param from
+     *            smallest key to count.
+     * @param to
+     *            key to stop before.
+     * @return number of keys, 0 if to is not greater than from.
+     */
+    public int countRange(T from, T to) {
+        if (from.compareTo(to) >= 0)
+            return 0;
+        return rank(to) - rank(from);
+    }
+
+    /**
+     * Greatest key less than or equal to value.
+     * 
+     * @param value
+     *            to search for.
+     * @return the key or null if there is none.
+     */
+    public T floor(T value) {
+        T candidate = null;
+        Node<T> node = root;
+        while (node != null) {
+            // keys in the child at index all sort above the key before it
+            int index = node.upperBound(value);
+            if (index > 0)
+                candidate = node.getKey(index - 1);
+            node = node.getChild(index);
+        }
+        return candidate;
+    }
+
+    /**
+     * Greatest key strictly less than value.
+     * 
+     * @param value
+     *            to search for.
+     * @return the key or null if there is none.
+     */
+    public T lower(T value) {
+        T candidate = null;
+        Node<T> node = root;
+        while (node != null) {
+            int index = node.lowerBound(value);
+            if (index > 0)
+                candidate = node.getKey(index - 1);
+            node = node.getChild(index);
+        }
+        return candidate;
+    }
+
+    /**
+     * Smallest key greater than or equal to value.
+     * 
+     * @param value
+     *            to search for.
+     * @return the key or null if there is none.
+     */
+    public T ceiling(T value) {
+        T candidate = null;
+        Node<T> node = root;
+        while (node != null) {
+            // keys in the child at index all sort below the key at index
+            int index = node.lowerBound(value);
+            if (index < node.numberOfKeys())
+                candidate = node.getKey(index);
+            node = node.getChild(index);
+        }
+        return candidate;
+    }
+
+    /**
+     * Smallest key strictly greater than value.
+     * 
+     * @param value
+     *            to search for.
+     * @return the key or null if there is none.
+     */
+    public T higher(T value) {
+        T candidate = null;
+        Node<T> node = root;
+        while (node != null) {
+            int index = node.upperBound(value);
+            if (index < node.numberOfKeys())
+                candidate = node.getKey(index);
+            node = node.getChild(index);
+        }
+        return candidate;
+    }
+
+    /**
+     * @return smallest key in the tree.
+     * @throws NoSuchElementException
+     *             if the tree is empty.
+     */
+    public T first() {
+        if (root == null)
+            throw new NoSuchElementException();
+        return getSmallestNode(root).getKey(0);
+    }
+
+    /**
+     * @return greatest key in the tree.
+     * @throws NoSuchElementException
+     *             if the tree is empty.
+     */
+    public T last() {
+        if (root == null)
+            throw new NoSuchElementException();
+        Node<T> node = getGreatestNode(root);
+        return node.getKey(node.numberOfKeys() - 1);
+    }
+
+    /**
+     * Remove the smallest key. It is always the first key of the leftmost
+     * leaf, which is removed from there directly.
+     * 
+     * @return the removed key or null if the tree is empty.
+     */
+    public T pollFirst() {
+        long start = startOp();
+        T removed = null;
+        if (root != null) {
+            Node<T> leaf = writable(getSmallestNode(root));
+            removed = remove(leaf.getKey(0), leaf);
+        }
+        endOp(BTreeMetrics.Op.POLL_FIRST, start);
+        return removed;
+    }
+
+    /**
+     * Remove the greatest key, the last key of the rightmost leaf.
+     * 
+     * @return the removed key or null if the tree is empty.
+     */
+    public T pollLast() {
+        long start = startOp();
+        T removed = null;
+        if (root != null) {
+            Node<T> leaf = writable(getGreatestNode(root));
+            removed = remove(leaf.getKey(leaf.numberOfKeys() - 1), leaf);
+        }
+        endOp(BTreeMetrics.Op.POLL_LAST, start);
+        return removed;
+    }
+
+    /**
+     * Take a point-in-time snapshot of the tree in O(1). Nothing is copied
+     * up front: from now on the first modification of any node reachable
+     * from the snapshot copies that node (and the path above it that is not
+     * copied yet) instead, so the snapshot never changes.
+     * 
+     * @return immutable view of the current contents.
+     */
+    public Snapshot<T> snapshot() {
+        generation++;
+        return new Snapshot<T>(root, size);
+    }
+
+    /**
+     * Get the node with value.
+     * 
+     * @param value
+     *            to find in the tree.
+     * @return Node<T> with value.
+     */
+    private Node<T> getNode(T value) {
+        Node<T> node = root;
+        while (node != null) {
+            int index = node.lowerBound(value);
+            if (index < node.numberOfKeys() && node.getKey(index).compareTo(value) == 0)
+                return node;
+            // getChild returns null past the last child, which ends a leaf
+            node = node.getChild(index);
+        }
+        return null;
+    }
+
+    /**
+     * Get the greatest valued child from node.
+     * 
+     * @param nodeToGet
+     *            child with the greatest value.
+     * @return Node<T> child with greatest value.
+     */
+    private Node<T> getGreatestNode(Node<T> nodeToGet) {
+        Node<T> node = nodeToGet;
+        while (node.numberOfChildren() > 0) {
+            node = node.getChild(node.numberOfChildren() - 1);
+        }
+        return node;
+    }
+    
+    //the opposite of getGreatestNode
+    private Node<T> getSmallestNode(Node<T> nodeToGet) {
+        Node<T> node = nodeToGet;
+        while (node.numberOfChildren() > 0) {
+            node = node.getChild(0);
+        }
+        return node;
+    }
+
+    private Node<T> newNode() {
+        Node<T> node = nodePool.poll();
+        if (node != null) {
+            nodesReused++;
+        } else {
+            node = new Node<T>(null, maxKeySize, maxChildrenSize, linearSearchThreshold);
+            nodesAllocated++;
+        }
+        node.generation = generation;
+        return node;
+    }
+
+    /**
+     * New node that bypasses the pool, for tasks building the tree in
+     * parallel. The caller adds them to nodesAllocated.
+     */
+    private Node<T> freshNode() {
+        Node<T> node = new Node<T>(null, maxKeySize, maxChildrenSize, linearSearchThreshold);
+        node.generation = generation;
+        return node;
+    }
+
+    /**
+     * Return a node that is no longer part of the tree to the pool. Nodes a
+     * snapshot may still see are left alone.
+     * 
+     * @param node
+     *            unlinked from the tree.
+     */
+    private void recycle(Node<T> node) {
+        if (nodePool.size() >= nodePoolSize || node.generation != generation)
+            return;
+        node.truncate(0, 0);
+        node.count = 0;
+        node.parent = null;
+        nodePool.push(node);
+    }
+
+    /**
+     * Add delta to the count of node and of every node above it, after keys
+     * were added to or removed from node itself.
+     * 
+     * @param node
+     *            whose keys changed, already writable.
+     * @param delta
+     *            change in its number of keys.
+     */
+    private void addToCounts(Node<T> node, int delta) {
+        for (Node<T> n = node; n != null; n = n.parent)
+            n.count += delta;
+    }
+
+    /**
+     * Make node safe to modify. A node that a snapshot may share is replaced
+     * in the tree by a private copy, after doing the same for its parent.
+     * Must be called on a node before its keys or children change, and the
+     * returned node used from then on.
+     * 
+     * @param node
+     *            about to be modified, may be null.
+     * @return node itself or its replacement.
+     */
+    private Node<T> writable(Node<T> node) {
+        if (node == null || node.generation == generation)
+            return node;
+        Node<T> copy = node.copy(generation);
+        if (node == root) {
+            root = copy;
+        } else {
+            Node<T> parent = writable(node.parent);
+            parent.children[parent.indexOf(node)] = copy;
+            copy.parent = parent;
+        }
+        return copy;
+    }
+
+    /**
+     * Combined children keys with parent when size is less than minKeySize.
+     * 
+     * @param node
+     *            with children to combined.
+     * @return True if combined successfully.
+     */
+    private boolean combined(Node<T> node) {
+        Node<T> parent = node.parent;
+        int index = parent.indexOf(node);
+        int indexOfLeftNeighbor = index - 1;
+        int indexOfRightNeighbor = index + 1;
+
+        Node<T> rightNeighbor = null;
+        int rightNeighborSize = -minChildrenSize;
+        if (indexOfRightNeighbor < parent.numberOfChildren()) {
+            rightNeighbor = writable(parent.getChild(indexOfRightNeighbor));
+            rightNeighborSize = rightNeighbor.numberOfKeys();
+        }
+
+        // Try to borrow neighbor
+        if (rightNeighbor != null && rightNeighborSize > minKeySize) {
+            // Try to borrow from right neighbor
+            count(BTreeMetrics.Event.REMOVE_BORROW);
+            T removeValue = rightNeighbor.getKey(0);
+            int prev = getIndexOfPreviousValue(parent, removeValue);
+            T parentValue = parent.removeKey(prev);
+            T neighborValue = rightNeighbor.removeKey(0);
+            node.addKey(parentValue);
+            parent.addKey(neighborValue);
+            if (rightNeighbor.numberOfChildren() > 0) {
+                node.addChild(rightNeighbor.removeChild(0));
+            }
+            node.recount();
+            rightNeighbor.recount();
+        } else {
+            Node<T> leftNeighbor = null;
+            int leftNeighborSize = -minChildrenSize;
+            if (indexOfLeftNeighbor >= 0) {
+                leftNeighbor = writable(parent.getChild(indexOfLeftNeighbor));
+                leftNeighborSize = leftNeighbor.numberOfKeys();
+            }
+
+            if (leftNeighbor != null && leftNeighborSize > minKeySize) {
+                // Try to borrow from left neighbor
+                count(BTreeMetrics.Event.REMOVE_BORROW);
+                T removeValue = leftNeighbor.getKey(leftNeighbor.numberOfKeys() - 1);
+                int prev = getIndexOfNextValue(parent, removeValue);
+                T parentValue = parent.removeKey(prev);
+                T neighborValue = leftNeighbor.removeKey(leftNeighbor.numberOfKeys() - 1);
+                node.addKey(parentValue);
+                parent.addKey(neighborValue);
+                if (leftNeighbor.numberOfChildren() > 0) {
+                    node.addChild(leftNeighbor.removeChild(leftNeighbor.numberOfChildren() - 1));
                 }
+                node.recount();
+                leftNeighbor.recount();
+            } else if (rightNeighbor != null && parent.numberOfKeys() > 0) {
+                // Can't borrow from neighbors, try to combined with right neighbor
+                count(BTreeMetrics.Event.REMOVE_MERGE);
+                T removeValue = rightNeighbor.getKey(0);
+                int prev = getIndexOfPreviousValue(parent, removeValue);
+                T parentValue = parent.removeKey(prev);
+                parent.removeChild(rightNeighbor);
+                node.insertKeyAt(node.numberOfKeys(), parentValue);
+                node.appendKeys(rightNeighbor, 0, rightNeighbor.numberOfKeys());
+                node.appendChildren(rightNeighbor, 0, rightNeighbor.numberOfChildren());
+                node.recount();
+                recycle(rightNeighbor);
 
                 if (parent.parent != null && parent.numberOfKeys() < minKeySize) {
                     // removing key made parent too small, combined up tree
@@ -813,22 +1839,20 @@ public class BTree<T extends Comparable<T>> {
                     // which decreases the height of the tree
                     node.parent = null;
                     root = node;
+                    recycle(parent);
                 }
             } else if (leftNeighbor != null && parent.numberOfKeys() > 0) {
                 // Can't borrow from neighbors, try to combined with left neighbor
+                count(BTreeMetrics.Event.REMOVE_MERGE);
                 T removeValue = leftNeighbor.getKey(leftNeighbor.numberOfKeys() - 1);
                 int prev = getIndexOfNextValue(parent, removeValue);
                 T parentValue = parent.removeKey(prev);
                 parent.removeChild(leftNeighbor);
-                node.addKey(parentValue);
-                for (int i = 0; i < leftNeighbor.keysSize; i++) {
-                    T v = leftNeighbor.getKey(i);
-                    node.addKey(v);
-                }
-                for (int i = 0; i < leftNeighbor.childrenSize; i++) {
-                    Node<T> c = leftNeighbor.getChild(i);
-                    node.addChild(c);
-                }
+                node.insertKeyAt(0, parentValue);
+                node.prependKeys(leftNeighbor);
+                node.prependChildren(leftNeighbor);
+                node.recount();
+                recycle(leftNeighbor);
 
                 if (parent.parent != null && parent.numberOfKeys() < minKeySize) {
                     // removing key made parent too small, combined up tree
@@ -838,6 +1862,7 @@ public class BTree<T extends Comparable<T>> {
                     // which decreases the height of the tree
                     node.parent = null;
                     root = node;
+                    recycle(parent);
                 }
             }
         }
@@ -855,12 +1880,9 @@ public class BTree<T extends Comparable<T>> {
      * @return index of previous key or -1 if not found.
      */
     private int getIndexOfPreviousValue(Node<T> node, T value) {
-        for (int i = 1; i < node.numberOfKeys(); i++) {
-            T t = node.getKey(i);
-            if (t.compareTo(value) >= 0)
-                return i - 1;
-        }
-        return node.numberOfKeys() - 1;
+        if (node.numberOfKeys() == 0)
+            return -1;
+        return Math.max(node.lowerBound(value), 1) - 1;
     }
 
     /**
@@ -873,11 +1895,9 @@ public class BTree<T extends Comparable<T>> {
      * @return index of next key or -1 if not found.
      */
     private int getIndexOfNextValue(Node<T> node, T value) {
-        for (int i = 0; i < node.numberOfKeys(); i++) {
-            T t = node.getKey(i);
-            if (t.compareTo(value) >= 0)
-                return i;
-        }
+        int index = node.lowerBound(value);
+        if (index < node.numberOfKeys())
+            return index;
         return node.numberOfKeys() - 1;
     }
 
@@ -893,17 +1913,35 @@ public class BTree<T extends Comparable<T>> {
      */
     public boolean validate() {
         if (root == null) return true;
-        return validateNode(root);
+        if (root.count != size) return false;
+        // visit the nodes in the same pre-order a recursive walk would
+        ArrayDeque<Node<T>> pending = new ArrayDeque<Node<T>>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node<T> node = pending.pop();
+            if (!validateNode(node))
+                return false;
+            for (int i = node.numberOfChildren() - 1; i >= 0; i--)
+                pending.push(node.getChild(i));
+        }
+        return true;
     }
 
     /**
-     * Validate the node according to the B-Tree invariants.
+     * Validate the node according to the B-Tree invariants. Its children are
+     * checked only against the node, validate() visits them itself.
      * 
      * @param node
      *            to validate.
      * @return True if valid.
      */
     private boolean validateNode(Node<T> node) {
+        int total = node.numberOfKeys();
+        for (int i = 0; i < node.numberOfChildren(); i++)
+            total += node.getChild(i).count;
+        if (node.count != total)
+            return false;
+
         int keySize = node.numberOfKeys();
         if (keySize > 1) {
             // Make sure the keys are sorted
@@ -969,13 +2007,6 @@ public class BTree<T extends Comparable<T>> {
                 return false;
         }
 
-        for (int i = 0; i < node.childrenSize; i++) {
-            Node<T> c = node.getChild(i);
-            boolean valid = this.validateNode(c);
-            if (!valid)
-                return false;
-        }
-
         return true;
     }
 
@@ -992,58 +2023,160 @@ public class BTree<T extends Comparable<T>> {
 
         private T[] keys = null;
         private int keysSize = 0;
+        // Leaves make up most of the tree, so the children array is only
+        // allocated once the node gets its first child
         private Node<T>[] children = null;
         private int childrenSize = 0;
-        private Comparator<Node<T>> comparator = new Comparator<Node<T>>() {
-            public int compare(Node<T> arg0, Node<T> arg1) {
-                return arg0.getKey(0).compareTo(arg1.getKey(0));
-            }
-        };
 
         protected Node<T> parent = null;
-
-        private Node(Node<T> parent, int maxKeySize, int maxChildrenSize) {
+        // generation of the tree this node was created or copied in
+        private int generation = 0;
+        // number of keys in the subtree rooted here, this node's included
+        private int count = 0;
+        // the tree's, kept here as the searches run on the node alone
+        private final int linearSearchThreshold;
+
+        private Node(Node<T> parent, int maxKeySize, int maxChildrenSize, int linearSearchThreshold) {
             this.parent = parent;
+            this.linearSearchThreshold = linearSearchThreshold;
+            // one spare slot each for the overflow add() splits on
             this.keys = (T[]) new Comparable[maxKeySize + 1];
             this.keysSize = 0;
-            this.children = new Node[maxChildrenSize + 1];
             this.childrenSize = 0;
         }
 
+        /**
+         * Copy of this node with its own key and children arrays. The
+         * children themselves are shared, but now point back to the copy.
+         */
+        private Node<T> copy(int generation) {
+            Node<T> copy = new Node<T>(parent, keys.length - 1, keys.length, linearSearchThreshold);
+            copy.generation = generation;
+            System.arraycopy(keys, 0, copy.keys, 0, keysSize);
+            copy.keysSize = keysSize;
+            copy.count = count;
+            copy.appendChildren(this, 0, childrenSize);
+            return copy;
+        }
+
         private T getKey(int index) {
             return keys[index];
         }
 
         private int indexOf(T value) {
-            for (int i = 0; i < keysSize; i++) {
-                if (keys[i].equals(value)) return i;
-            }
+            int index = lowerBound(value);
+            if (index < keysSize && keys[index].compareTo(value) == 0)
+                return index;
             return -1;
         }
 
-        private void addKey(T value) {
-            keys[keysSize++] = value;
-            Arrays.sort(keys, 0, keysSize);
+        /**
+         * Index of the first key greater than or equal to value, or
+         * numberOfKeys() if every key is smaller. Bisects until the window is
+         * no larger than linearSearchThreshold and then counts the smaller keys
+         * left in the window without branching on the comparison.
+         * 
+         * @param value
+         *            to search for.
+         * @return insertion point before any equal keys.
+         */
+        private int lowerBound(T value) {
+            int low = 0;
+            int high = keysSize;
+            while (high - low > linearSearchThreshold) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(value) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            int smaller = 0;
+            for (int i = low; i < high; i++) {
+                // sign bit is set exactly when keys[i] < value
+                smaller += keys[i].compareTo(value) >>> 31;
+            }
+            return low + smaller;
         }
 
-        private T removeKey(T value) {
-            T removed = null;
-            boolean found = false;
-            if (keysSize == 0) return null;
-            for (int i = 0; i < keysSize; i++) {
-                if (keys[i].equals(value)) {
-                    found = true;
-                    removed = keys[i];
-                } else if (found) {
-                    // shift the rest of the keys down
-                    keys[i - 1] = keys[i];
-                }
+        /**
+         * Index of the first key strictly greater than value, or
+         * numberOfKeys() if there is none.
+         * 
+         * @param value
+         *            to search for.
+         * @return insertion point after any equal keys.
+         */
+        private int upperBound(T value) {
+            int low = 0;
+            int high = keysSize;
+            while (high - low > linearSearchThreshold) {
+                int mid = (low + high) >>> 1;
+                if (value.compareTo(keys[mid]) >= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
             }
-            if (found) {
-                keysSize--;
-                keys[keysSize] = null;
+            int greater = 0;
+            for (int i = low; i < high; i++) {
+                // sign bit is set exactly when value < keys[i]
+                greater += value.compareTo(keys[i]) >>> 31;
             }
-            return removed;
+            return high - greater;
+        }
+
+        private void addKey(T value) {
+            insertKeyAt(upperBound(value), value);
+        }
+
+        private void insertKeyAt(int index, T value) {
+            System.arraycopy(keys, index, keys, index + 1, keysSize - index);
+            keys[index] = value;
+            keysSize++;
+        }
+
+        /**
+         * Append source's keys in [from, to) after this node's keys. The
+         * caller guarantees they are all greater than the keys already here.
+         */
+        private void appendKeys(Node<T> source, int from, int to) {
+            System.arraycopy(source.keys, from, keys, keysSize, to - from);
+            keysSize += to - from;
+        }
+
+        /**
+         * Append keys [from, to) of a sorted array after this node's keys.
+         */
+        private void appendKeys(T[] source, int from, int to) {
+            System.arraycopy(source, from, keys, keysSize, to - from);
+            keysSize += to - from;
+        }
+
+        /**
+         * Insert all of source's keys in front of this node's keys. The
+         * caller guarantees they are all smaller than the keys already here.
+         */
+        private void prependKeys(Node<T> source) {
+            int count = source.keysSize;
+            System.arraycopy(keys, 0, keys, count, keysSize);
+            System.arraycopy(source.keys, 0, keys, 0, count);
+            keysSize += count;
+        }
+
+        /**
+         * Drop every key from keyCount and every child from childCount on.
+         */
+        private void truncate(int keyCount, int childCount) {
+            Arrays.fill(keys, keyCount, keysSize, null);
+            keysSize = keyCount;
+            if (children != null)
+                Arrays.fill(children, childCount, childrenSize, null);
+            childrenSize = childCount;
+        }
+
+        private T removeKey(T value) {
+            int index = indexOf(value);
+            if (index == -1) return null;
+            return removeKey(index);
         }
 
         private T removeKey(int index) {
@@ -1083,6 +2216,17 @@ public class BTree<T extends Comparable<T>> {
             return keysSize;
         }
 
+        /**
+         * Recompute count from this node's keys and its children's counts,
+         * after keys or children moved between nodes.
+         */
+        private void recount() {
+            int total = keysSize;
+            for (int i = 0; i < childrenSize; i++)
+                total += children[i].count;
+            count = total;
+        }
+
         private boolean is_leaf()
         {return numberOfChildren()==0;}
 
@@ -1104,21 +2248,68 @@ public class BTree<T extends Comparable<T>> {
         private int get_closest_child_to_target(T traget) {
         	
         	//Returns the index of the key who is closest to target and bigger , if no such index exists
-            for(int i=0;i<keysSize;i++)
-                if(traget.compareTo(keys[i])<0)
-                    return i;
-            return numberOfKeys();
+            return upperBound(traget);
         }
 
         private boolean addChild(Node<T> child) {
             if(child!=null) {
-                child.parent = this;
-                children[childrenSize++] = child;
-                Arrays.sort(children, 0, childrenSize, comparator);
+                // children are ordered by their first key, find the slot after
+                // every child that does not sort above the new one
+                T first = child.getKey(0);
+                int low = 0;
+                int high = childrenSize;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (first.compareTo(children[mid].getKey(0)) >= 0)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                insertChildAt(low, child);
             }
             return true;
         }
 
+        private void insertChildAt(int index, Node<T> child) {
+            ensureChildren();
+            System.arraycopy(children, index, children, index + 1, childrenSize - index);
+            children[index] = child;
+            child.parent = this;
+            childrenSize++;
+        }
+
+        /**
+         * Append source's children in [from, to) after this node's children
+         * and re-parent them.
+         */
+        private void appendChildren(Node<T> source, int from, int to) {
+            if (to == from)
+                return;
+            ensureChildren();
+            System.arraycopy(source.children, from, children, childrenSize, to - from);
+            for (int i = childrenSize; i < childrenSize + to - from; i++) {
+                children[i].parent = this;
+            }
+            childrenSize += to - from;
+        }
+
+        /**
+         * Insert all of source's children in front of this node's children
+         * and re-parent them.
+         */
+        private void prependChildren(Node<T> source) {
+            int count = source.childrenSize;
+            if (count == 0)
+                return;
+            ensureChildren();
+            System.arraycopy(children, 0, children, count, childrenSize);
+            System.arraycopy(source.children, 0, children, 0, count);
+            for (int i = 0; i < count; i++) {
+                children[i].parent = this;
+            }
+            childrenSize += count;
+        }
+
         private boolean removeChild(Node<T> child) {
             boolean found = false;
             if (childrenSize == 0)
@@ -1158,6 +2349,12 @@ public class BTree<T extends Comparable<T>> {
             return childrenSize;
         }
 
+        private void ensureChildren() {
+            // a node has at most one child more than it can hold keys
+            if (children == null)
+                children = new Node[keys.length + 1];
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -1185,14 +2382,161 @@ public class BTree<T extends Comparable<T>> {
                 builder.append("]\n");
             }
 
-            if (children != null) {
-                builder.append("keySize=").append(numberOfKeys()).append(" children=").append(numberOfChildren()).append("\n");
-            }
+            builder.append("keySize=").append(numberOfKeys()).append(" children=").append(numberOfChildren()).append("\n");
 
             return builder.toString();
         }
     }
 
+    /**
+     * In-order cursor over a key range. It keeps an explicit stack of the
+     * nodes on the path to the next key, one entry per level, and moves to
+     * the next key by popping finished nodes or descending into the next
+     * child's leftmost leaf. A cursor over the tree must not be used across
+     * modifications of it, one over a {@link Snapshot} stays valid.
+     */
+    public static class Cursor<T extends Comparable<T>> implements Iterator<T> {
+
+        private final Node<T> root;
+        private final T to;
+        // nodes[d] is the node at depth d of the current path, indexes[d]
+        // the next key to return from it, its child at that index being done
+        private Node<T>[] nodes;
+        private int[] indexes;
+        private int depth = -1;
+        private T next = null;
+
+        private Cursor(Node<T> root, T from, T to) {
+            this.root = root;
+            this.to = to;
+            int height = 0;
+            for (Node<T> node = root; node != null; node = node.getChild(0))
+                height++;
+            this.nodes = new Node[Math.max(height, 1)];
+            this.indexes = new int[nodes.length];
+            seek(from);
+        }
+
+        /**
+         * Move the cursor so that the next key returned is the first key
+         * greater than or equal to from, still bounded by the range's end.
+         * 
+         * @param from
+         *            key to move to, null for the smallest key.
+         */
+        public void seek(T from) {
+            depth = -1;
+            Node<T> node = root;
+            while (node != null) {
+                int index = from == null ? 0 : node.lowerBound(from);
+                push(node, index);
+                node = node.getChild(index);
+            }
+            advance();
+        }
+
+        private void push(Node<T> node, int index) {
+            if (depth + 1 == nodes.length) {
+                // only reached if the leaves are not all at one depth
+                nodes = Arrays.copyOf(nodes, depth + 2);
+                indexes = Arrays.copyOf(indexes, depth + 2);
+            }
+            depth++;
+            nodes[depth] = node;
+            indexes[depth] = index;
+        }
+
+        // find the key after the last one returned and keep it in next
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Node<T> node = nodes[depth];
+                int index = indexes[depth];
+                if (index >= node.numberOfKeys()) {
+                    depth--;
+                    continue;
+                }
+                T key = node.getKey(index);
+                indexes[depth] = index + 1;
+                // the subtree right of key comes next, enter its leftmost leaf
+                for (Node<T> child = node.getChild(index + 1); child != null; child = child.getChild(0))
+                    push(child, 0);
+                if (to != null && key.compareTo(to) >= 0) {
+                    depth = -1;
+                    return;
+                }
+                next = key;
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            T key = next;
+            advance();
+            return key;
+        }
+    }
+
+    /**
+     * Immutable view of a B-Tree taken by {@link BTree#snapshot()}. The nodes
+     * it sees are never modified again, so any number of threads can search
+     * and iterate it without locking while the tree keeps changing.
+     */
+    public static class Snapshot<T extends Comparable<T>> implements Iterable<T> {
+
+        private final Node<T> root;
+        private final int size;
+
+        private Snapshot(Node<T> root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public boolean contains(T value) {
+            Node<T> node = root;
+            while (node != null) {
+                int index = node.lowerBound(value);
+                if (index < node.numberOfKeys() && node.getKey(index).compareTo(value) == 0)
+                    return true;
+                node = node.getChild(index);
+            }
+            return false;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Iterate the keys in order.
+         */
+        @Override
+        public Cursor<T> iterator() {
+            return new Cursor<T>(root, null, null);
+        }
+
+        /**
+         * Iterate the keys of the snapshot in [from, to).
+         * 
+         * @param from
+         *            smallest key to return, null for no lower bound.
+         * @param to
+         *            key to stop before, null for no upper bound.
+         * @return cursor positioned before the first key in range.
+         */
+        public Cursor<T> rangeScan(T from, T to) {
+            return new Cursor<T>(root, from, to);
+        }
+    }
+
     private static class TreePrinter {
 
         public static <T extends Comparable<T>> String getString(BTree<T> tree) {
@@ -1200,26 +2544,36 @@ public class BTree<T extends Comparable<T>> {
             return getString(tree.root, "", true);
         }
 
-        private static <T extends Comparable<T>> String getString(Node<T> node, String prefix, boolean isTail) {
+        private static <T extends Comparable<T>> String getString(Node<T> root, String rootPrefix, boolean rootIsTail) {
             StringBuilder builder = new StringBuilder();
-
-            builder.append(prefix).append((isTail ? "└── " : "├── "));
-            for (int i = 0; i < node.numberOfKeys(); i++) {
-                T value = node.getKey(i);
-                builder.append(value);
-                if (i < node.numberOfKeys() - 1)
-                    builder.append(", ");
-            }
-            builder.append("\n");
-
-            if (node.children != null) {
-                for (int i = 0; i < node.numberOfChildren() - 1; i++) {
-                    Node<T> obj = node.getChild(i);
-                    builder.append(getString(obj, prefix + (isTail ? "    " : "│   "), false));
+            // nodes still to print with their prefix and whether they are the
+            // last child, children pushed in reverse so they pop in order
+            ArrayDeque<Node<T>> nodes = new ArrayDeque<Node<T>>();
+            ArrayDeque<String> prefixes = new ArrayDeque<String>();
+            ArrayDeque<Boolean> tails = new ArrayDeque<Boolean>();
+            nodes.push(root);
+            prefixes.push(rootPrefix);
+            tails.push(rootIsTail);
+
+            while (!nodes.isEmpty()) {
+                Node<T> node = nodes.pop();
+                String prefix = prefixes.pop();
+                boolean isTail = tails.pop();
+
+                builder.append(prefix).append((isTail ? "└── " : "├── "));
+                for (int i = 0; i < node.numberOfKeys(); i++) {
+                    T value = node.getKey(i);
+                    builder.append(value);
+                    if (i < node.numberOfKeys() - 1)
+                        builder.append(", ");
                 }
-                if (node.numberOfChildren() >= 1) {
-                    Node<T> obj = node.getChild(node.numberOfChildren() - 1);
-                    builder.append(getString(obj, prefix + (isTail ? "    " : "│   "), true));
+                builder.append("\n");
+
+                String childPrefix = prefix + (isTail ? "    " : "│   ");
+                for (int i = node.numberOfChildren() - 1; i >= 0; i--) {
+                    nodes.push(node.getChild(i));
+                    prefixes.push(childPrefix);
+                    tails.push(i == node.numberOfChildren() - 1);
                 }
             }
 
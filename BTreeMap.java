@@ -0,0 +1,302 @@
+import java.util.function.Function;
+
+/**
+ * B-Tree map which stores each value in a parallel array next to its key,
+ * so using the tree as an index needs no key/value holder objects and a
+ * lookup does not allocate a probe.
+ */
+@SuppressWarnings("unchecked")
+public class BTreeMap<K extends Comparable<K>, V> {
+
+    // Default to 2-3 Tree
+    private int minKeySize = 1;
+    private int minChildrenSize = minKeySize + 1; // 2
+    private int maxKeySize = 2 * (minKeySize + 1) - 1; // 2
+    private int maxChildrenSize = maxKeySize + 1; // 3
+
+    private Node<K, V> root = null;
+    private int size = 0;
+
+    /**
+     * Constructor for B-Tree map which defaults to a 2-3 B-Tree.
+     */
+    public BTreeMap() { }
+
+    /**
+     * Constructor for B-Tree map of ordered parameter. Order here means
+     * minimum number of keys in a non-root node.
+     *
+     * @param order
+     *            of the B-Tree.
+     */
+    public BTreeMap(int order) {
+        this.minKeySize = order - 1;
+        this.minChildrenSize = minKeySize + 1;
+        this.maxKeySize = 2 * (minKeySize + 1) - 1;
+        this.maxChildrenSize = maxKeySize + 1;
+    }
+
+    /**
+     * Get the value mapped to key.
+     *
+     * @param key
+     *            to look up.
+     * @return value or null if key is not in the map.
+     */
+    public V get(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int index = node.lowerBound(key);
+            if (index < node.keysSize && node.keys[index].compareTo(key) == 0)
+                return node.values[index];
+            node = node.getChild(index);
+        }
+        return null;
+    }
+
+    public boolean containsKey(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int index = node.lowerBound(key);
+            if (index < node.keysSize && node.keys[index].compareTo(key) == 0)
+                return true;
+            node = node.getChild(index);
+        }
+        return false;
+    }
+
+    /**
+     * Map key to value, replacing any value it was mapped to before. Full
+     * nodes are split on the way down so the leaf always has room.
+     *
+     * @param key
+     *            to map.
+     * @param value
+     *            to store.
+     * @return the previous value or null if key was not in the map.
+     */
+    public V put(K key, V value) {
+        if (root == null) {
+            root = new Node<K, V>(maxKeySize);
+        } else if (root.keysSize == maxKeySize) {
+            Node<K, V> s = new Node<K, V>(maxKeySize);
+            s.insertChildAt(0, root);
+            root = s;
+            splitChild(s, 0);
+        }
+
+        Node<K, V> x = root;
+        while (true) {
+            int i = x.lowerBound(key);
+            if (i < x.keysSize && x.keys[i].compareTo(key) == 0) {
+                V previous = x.values[i];
+                x.values[i] = value;
+                return previous;
+            }
+            if (x.isLeaf()) {
+                x.insertAt(i, key, value);
+                size++;
+                return null;
+            }
+            if (x.children[i].keysSize == maxKeySize) {
+                splitChild(x, i);
+                int c = key.compareTo(x.keys[i]);
+                if (c == 0) {
+                    // the key was the median that just moved up
+                    V previous = x.values[i];
+                    x.values[i] = value;
+                    return previous;
+                }
+                if (c > 0)
+                    i++;
+            }
+            x = x.children[i];
+        }
+    }
+
+    /**
+     * Return the value mapped to key, computing and storing it first if
+     * there is none. Nothing is stored if the function returns null.
+     *
+     * @param key
+     *            to look up.
+     * @param mappingFunction
+     *            computes the value for an absent key.
+     * @return current (existing or computed) value.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        V value = get(key);
+        if (value != null)
+            return value;
+        value = mappingFunction.apply(key);
+        if (value != null)
+            put(key, value);
+        return value;
+    }
+
+    private void splitChild(Node<K, V> x, int i) {
+        x.splitChild(i, minKeySize, new Node<K, V>(maxKeySize));
+    }
+
+    /**
+     * Remove the mapping for key. Every node entered on the way down is first
+     * topped up to more than minKeySize entries, so nothing has to be fixed
+     * on the way back up.
+     *
+     * @param key
+     *            to remove.
+     * @return the removed value or null if key was not in the map.
+     */
+    public V remove(K key) {
+        if (root == null)
+            return null;
+
+        V removed = null;
+        boolean found = false;
+        Node<K, V> x = root;
+        while (true) {
+            int i = x.lowerBound(key);
+            if (i < x.keysSize && x.keys[i].compareTo(key) == 0) {
+                if (!found) {
+                    removed = x.values[i];
+                    found = true;
+                }
+                if (x.isLeaf()) {
+                    x.removeAt(i);
+                    break;
+                }
+                Node<K, V> left = x.children[i];
+                Node<K, V> right = x.children[i + 1];
+                if (left.keysSize > minKeySize) {
+                    // replace with the predecessor entry and remove that instead
+                    Node<K, V> greatest = getGreatestNode(left);
+                    key = greatest.keys[greatest.keysSize - 1];
+                    x.keys[i] = key;
+                    x.values[i] = greatest.values[greatest.keysSize - 1];
+                    x = left;
+                } else if (right.keysSize > minKeySize) {
+                    Node<K, V> smallest = getSmallestNode(right);
+                    key = smallest.keys[0];
+                    x.keys[i] = key;
+                    x.values[i] = smallest.values[0];
+                    x = right;
+                } else {
+                    x = x.mergeChildren(i);
+                }
+                continue;
+            }
+            if (x.isLeaf())
+                break;
+            x = x.fixChildSize(i, minKeySize);
+        }
+
+        if (root.keysSize == 0)
+            root = root.isLeaf() ? null : root.children[0];
+        if (found)
+            size--;
+        return removed;
+    }
+
+    private Node<K, V> getGreatestNode(Node<K, V> nodeToGet) {
+        Node<K, V> node = nodeToGet;
+        while (!node.isLeaf())
+            node = node.children[node.childrenSize - 1];
+        return node;
+    }
+
+    private Node<K, V> getSmallestNode(Node<K, V> nodeToGet) {
+        Node<K, V> node = nodeToGet;
+        while (!node.isLeaf())
+            node = node.children[0];
+        return node;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Validate the map according to the B-Tree invariants.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        if (root == null) return true;
+        return validateNode(root, true);
+    }
+
+    private boolean validateNode(Node<K, V> node, boolean isRoot) {
+        int keySize = node.keysSize;
+        for (int i = 1; i < keySize; i++) {
+            // keys of a map are unique, so they must be strictly increasing
+            if (node.keys[i - 1].compareTo(node.keys[i]) >= 0)
+                return false;
+        }
+        int childrenSize = node.childrenSize;
+        if (keySize > maxKeySize)
+            return false;
+        if (!isRoot && keySize < minKeySize)
+            return false;
+        if (childrenSize == 0)
+            return true;
+        if (keySize != childrenSize - 1)
+            return false;
+        if (!isRoot && childrenSize < minChildrenSize)
+            return false;
+        if (childrenSize > maxChildrenSize)
+            return false;
+
+        for (int i = 0; i < childrenSize; i++) {
+            Node<K, V> c = node.children[i];
+            if (i > 0 && c.keys[0].compareTo(node.keys[i - 1]) <= 0)
+                return false;
+            if (i < keySize && c.keys[c.keysSize - 1].compareTo(node.keys[i]) >= 0)
+                return false;
+            if (!validateNode(c, false))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (root == null) return "Tree has no nodes.";
+        return getString(root, "", true);
+    }
+
+    private static <K extends Comparable<K>, V> String getString(Node<K, V> node, String prefix, boolean isTail) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(prefix).append((isTail ? "└── " : "├── "));
+        for (int i = 0; i < node.keysSize; i++) {
+            builder.append(node.keys[i]).append('=').append(node.values[i]);
+            if (i < node.keysSize - 1)
+                builder.append(", ");
+        }
+        builder.append("\n");
+
+        for (int i = 0; i < node.childrenSize; i++) {
+            boolean last = i == node.childrenSize - 1;
+            builder.append(getString(node.children[i], prefix + (isTail ? "    " : "│   "), last));
+        }
+
+        return builder.toString();
+    }
+
+    private static class Node<K extends Comparable<K>, V> extends MapNode<K, V, Node<K, V>> {
+
+        private Node(int maxKeySize) {
+            super(maxKeySize, true);
+        }
+
+        @Override
+        Node<K, V>[] newChildren(int length) {
+            return new Node[length];
+        }
+    }
+}
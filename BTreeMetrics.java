@@ -0,0 +1,417 @@
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a {@link BTree}, attached with
+ * {@link BTree#setMetrics(BTreeMetrics)}. A tree without metrics only pays a
+ * null check per operation and per split or merge.
+ *
+ * Every counter is a LongAdder, so one instance can be shared by trees on
+ * different threads and read from any thread, including over JMX, while they
+ * run. Latencies go into log-linear histograms: each power of two of
+ * nanoseconds is cut into SUB_BUCKETS buckets, which keeps every percentile
+ * within 1 / SUB_BUCKETS of the true value in a fixed 4KB per operation.
+ * Timing can be sampled to keep System.nanoTime() off most operations; the
+ * operation counts stay exact either way.
+ */
+public class BTreeMetrics {
+
+    /** Timed public operations of BTree, a batch or bulk load counting as one. */
+    public enum Op {
+        CONTAINS, INSERT, INSERT_2PASS, ADD, DELETE, REMOVE, POLL_FIRST, POLL_LAST,
+        INSERT_ALL, DELETE_ALL, BULK_LOAD, PARALLEL_BULK_LOAD
+    }
+
+    /** Structural changes counted inside BTree. */
+    public enum Event {
+        /** splitChild or splitChild2Pass, the top-down inserts. */
+        SPLIT_CHILD,
+        /** split, add's bottom-up split of an overfull node. */
+        SPLIT,
+        /** delete topped a node up by try_shift. */
+        DELETE_SHIFT,
+        /** delete merged two nodes in perform_merge_and_update_tree. */
+        DELETE_MERGE,
+        /** remove's combined borrowed a key from a neighbour. */
+        REMOVE_BORROW,
+        /** remove's combined merged a node with a neighbour. */
+        REMOVE_MERGE
+    }
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final LongAdder[] events = new LongAdder[Event.values().length];
+    private final LongAdder[] operations = new LongAdder[Op.values().length];
+    private final Histogram[] latencies = new Histogram[Op.values().length];
+    private final long sampleMask;
+    // only drives sampling, a lost update between threads just moves a sample
+    private long ticks = 0;
+
+    // tree shape as of the last BTree.stats() call
+    private volatile Shape shape = new Shape(0, 0, 0, 0, 0);
+
+    /**
+     * Metrics that time every operation.
+     */
+    public BTreeMetrics() {
+        this(1);
+    }
+
+    /**
+     * Metrics that time one operation in sampleEvery.
+     *
+     * @param sampleEvery
+     *            rounded up to a power of two, 1 times every operation.
+     */
+    public BTreeMetrics(int sampleEvery) {
+        if (sampleEvery < 1)
+            throw new IllegalArgumentException("sampleEvery must be at least 1");
+        this.sampleMask = Long.highestOneBit(2L * sampleEvery - 1) - 1;
+        for (int i = 0; i < events.length; i++)
+            events[i] = new LongAdder();
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new LongAdder();
+            latencies[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Start of an operation.
+     *
+     * @return System.nanoTime() if this operation is sampled, otherwise -1.
+     */
+    long start() {
+        if ((ticks++ & sampleMask) != 0)
+            return -1;
+        return System.nanoTime();
+    }
+
+    /**
+     * End of an operation started with {@link #start()}.
+     */
+    void record(Op op, long start) {
+        operations[op.ordinal()].increment();
+        if (start >= 0)
+            latencies[op.ordinal()].record(System.nanoTime() - start);
+    }
+
+    void increment(Event event) {
+        events[event.ordinal()].increment();
+    }
+
+    void shape(Shape shape) {
+        this.shape = shape;
+    }
+
+    public long count(Op op) {
+        return operations[op.ordinal()].sum();
+    }
+
+    public long count(Event event) {
+        return events[event.ordinal()].sum();
+    }
+
+    /**
+     * Clear every counter and histogram. Updates racing with the reset may
+     * survive it.
+     */
+    public void reset() {
+        for (LongAdder adder : events)
+            adder.reset();
+        for (LongAdder adder : operations)
+            adder.reset();
+        for (Histogram histogram : latencies)
+            histogram.reset();
+    }
+
+    /**
+     * @return copy of the counters and latencies, with the tree shape of the
+     *         last BTree.stats() call.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this, shape);
+    }
+
+    /**
+     * Register these metrics with the platform MBean server as
+     * "BTree:type=Metrics,name=" + name.
+     *
+     * @param name
+     *            distinguishing this tree from others.
+     * @return the name registered under, for unregistering.
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("BTree:type=Metrics,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MXBeanAdapter(this), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics " + name, e);
+        }
+    }
+
+    /**
+     * Bucket of a latency: values below SUB_BUCKETS each get their own, every
+     * power of two above that is split into SUB_BUCKETS linear buckets.
+     */
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) Math.max(nanos, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        int mantissa = (int) (nanos >>> exponent) & (SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    // largest value that lands in the bucket
+    private static long bucketMax(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos));
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        private void reset() {
+            for (int i = 0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+            total.reset();
+            max.reset();
+        }
+    }
+
+    /** Shape of the tree, walked by BTree.stats(). */
+    static final class Shape {
+
+        private final int size;
+        private final int height;
+        private final long nodes;
+        private final long keys;
+        private final double fillFactor;
+
+        Shape(int size, int height, long nodes, long keys, double fillFactor) {
+            this.size = size;
+            this.height = height;
+            this.nodes = nodes;
+            this.keys = keys;
+            this.fillFactor = fillFactor;
+        }
+    }
+
+    /**
+     * Latencies of one operation in nanoseconds, percentiles rounded up to
+     * their bucket but never past the largest latency recorded.
+     */
+    public static final class Latency {
+
+        private final long samples;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        private Latency(Histogram histogram) {
+            // before the buckets, so the percentiles it caps are never above the max reported
+            this.max = histogram.max.get();
+            long[] counts = new long[histogram.buckets.length()];
+            long samples = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.buckets.get(i);
+                samples += counts[i];
+            }
+            this.samples = samples;
+            this.mean = samples == 0 ? 0 : histogram.total.sum() / samples;
+            this.p50 = percentile(counts, samples, 0.5, max);
+            this.p90 = percentile(counts, samples, 0.9, max);
+            this.p99 = percentile(counts, samples, 0.99, max);
+            this.p999 = percentile(counts, samples, 0.999, max);
+        }
+
+        private static long percentile(long[] counts, long samples, double fraction, long max) {
+            if (samples == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * samples);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(bucketMax(i), max);
+            }
+            return max;
+        }
+
+        public long samples() { return samples; }
+        public long mean() { return mean; }
+        public long p50() { return p50; }
+        public long p90() { return p90; }
+        public long p99() { return p99; }
+        public long p999() { return p999; }
+        public long max() { return max; }
+
+        @Override
+        public String toString() {
+            return "samples=" + samples + " mean=" + mean + " p50=" + p50 + " p90=" + p90
+                    + " p99=" + p99 + " p999=" + p999 + " max=" + max;
+        }
+    }
+
+    /** Point-in-time copy of the metrics. */
+    public static final class Snapshot {
+
+        private final Map<Event, Long> events = new EnumMap<Event, Long>(Event.class);
+        private final Map<Op, Long> operations = new EnumMap<Op, Long>(Op.class);
+        private final Map<Op, Latency> latencies = new EnumMap<Op, Latency>(Op.class);
+        private final Shape shape;
+
+        private Snapshot(BTreeMetrics metrics, Shape shape) {
+            for (Event event : Event.values())
+                events.put(event, metrics.count(event));
+            for (Op op : Op.values()) {
+                operations.put(op, metrics.count(op));
+                latencies.put(op, new Latency(metrics.latencies[op.ordinal()]));
+            }
+            this.shape = shape;
+        }
+
+        public long count(Event event) { return events.get(event); }
+        public long count(Op op) { return operations.get(op); }
+        public Latency latency(Op op) { return latencies.get(op); }
+        public int size() { return shape.size; }
+        public int height() { return shape.height; }
+        public long nodes() { return shape.nodes; }
+        public long keys() { return shape.keys; }
+
+        /**
+         * @return keys over the key slots of every node, 0 for an empty tree.
+         */
+        public double fillFactor() { return shape.fillFactor; }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("size=").append(size()).append(" height=").append(height())
+                   .append(" nodes=").append(nodes()).append(" fill=")
+                   .append(String.format("%.3f", fillFactor())).append("\n");
+            for (Event event : Event.values())
+                builder.append(event).append('=').append(count(event)).append("\n");
+            for (Op op : Op.values())
+                builder.append(op).append(" count=").append(count(op)).append(' ').append(latency(op)).append("\n");
+            return builder.toString();
+        }
+    }
+
+    /** JMX view of a BTreeMetrics, every attribute read live. */
+    public interface BTreeMetricsMXBean {
+
+        Map<String, Long> getEvents();
+
+        Map<String, Long> getOperations();
+
+        Map<String, Long> getLatencyP50Nanos();
+
+        Map<String, Long> getLatencyP99Nanos();
+
+        Map<String, Long> getLatencyMaxNanos();
+
+        int getHeight();
+
+        long getNodes();
+
+        double getFillFactor();
+
+        void reset();
+    }
+
+    private static final class MXBeanAdapter implements BTreeMetricsMXBean {
+
+        private final BTreeMetrics metrics;
+
+        private MXBeanAdapter(BTreeMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Map<String, Long> getEvents() {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (Event event : Event.values())
+                map.put(event.name(), metrics.count(event));
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getOperations() {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (Op op : Op.values())
+                map.put(op.name(), metrics.count(op));
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getLatencyP50Nanos() {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (Op op : Op.values())
+                map.put(op.name(), new Latency(metrics.latencies[op.ordinal()]).p50());
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getLatencyP99Nanos() {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (Op op : Op.values())
+                map.put(op.name(), new Latency(metrics.latencies[op.ordinal()]).p99());
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getLatencyMaxNanos() {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (Op op : Op.values())
+                map.put(op.name(), metrics.latencies[op.ordinal()].max.get());
+            return map;
+        }
+
+        @Override
+        public int getHeight() {
+            return metrics.shape.height;
+        }
+
+        @Override
+        public long getNodes() {
+            return metrics.shape.nodes;
+        }
+
+        @Override
+        public double getFillFactor() {
+            return metrics.shape.fillFactor;
+        }
+
+        @Override
+        public void reset() {
+            metrics.reset();
+        }
+    }
+}
@@ -0,0 +1,613 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Tree of byte[] keys, compared as unsigned bytes, for long keys that share
+ * long prefixes such as String identifiers.
+ *
+ * Every node stores the prefix its keys have in common once and only the
+ * remaining suffixes, packed into one byte[] instead of an array of
+ * references, so a node holds many more keys per cache line.
+ *
+ * Keys live in the leaves only, as in a B+Tree, and internal nodes hold
+ * separators. A separator only has to be greater than every key on its left
+ * and no greater than every key on its right, so when a leaf splits the
+ * separator promoted is the shortest prefix of the right half's first key
+ * that does this (suffix truncation). Internal nodes then hold short
+ * separators that compress well, and lookups compare fewer bytes.
+ *
+ * Keys are distinct: inserting a key that is already present does nothing.
+ */
+public class ByteKeyBTree {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Default to 2-3 Tree
+    private int minKeySize = 1;
+    private int minChildrenSize = minKeySize + 1; // 2
+    private int maxKeySize = 2 * (minKeySize + 1) - 1; // 2
+    private int maxChildrenSize = maxKeySize + 1; // 3
+
+    private Node root = null;
+    private int size = 0;
+
+    /**
+     * Constructor for B-Tree which defaults to a 2-3 B-Tree.
+     */
+    public ByteKeyBTree() { }
+
+    /**
+     * Constructor for B-Tree of ordered parameter. Order here means minimum
+     * number of keys in a non-root node.
+     *
+     * @param order
+     *            of the B-Tree.
+     */
+    public ByteKeyBTree(int order) {
+        this.minKeySize = order - 1;
+        this.minChildrenSize = minKeySize + 1;
+        this.maxKeySize = 2 * (minKeySize + 1) - 1;
+        this.maxChildrenSize = maxKeySize + 1;
+    }
+
+    /**
+     * Insert key, splitting full nodes on the way down so the leaf it lands
+     * in always has room.
+     *
+     * @param key
+     *            to insert, not modified afterwards by the caller.
+     * @return True if key was not already in the tree.
+     */
+    public boolean insert(byte[] key) {
+        if (root == null) {
+            root = new Node(maxKeySize, true);
+        } else if (root.keysSize == maxKeySize) {
+            Node s = new Node(maxKeySize, false);
+            s.insertChildAt(0, root);
+            root = s;
+            splitChild(s, 0);
+        }
+
+        Node x = root;
+        while (!x.isLeaf()) {
+            int i = x.upperBound(key);
+            if (x.children[i].keysSize == maxKeySize) {
+                splitChild(x, i);
+                // keys equal to the new separator belong on its right
+                if (x.compare(i, key) <= 0)
+                    i++;
+            }
+            x = x.children[i];
+        }
+        int i = x.lowerBound(key);
+        if (i < x.keysSize && x.compare(i, key) == 0)
+            return false;
+        x.insertKeyAt(i, key);
+        size++;
+        return true;
+    }
+
+    /**
+     * Insert the UTF-8 encoding of key, whose unsigned byte order is the
+     * code point order of the strings.
+     *
+     * @param key
+     *            to insert.
+     * @return True if key was not already in the tree.
+     */
+    public boolean insert(String key) {
+        return insert(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void splitChild(Node x, int i) {
+        Node y = x.children[i];
+        Node z = new Node(maxKeySize, y.isLeaf());
+        byte[][] keys = y.keys(0, y.keysSize);
+        byte[] separator;
+        if (y.isLeaf()) {
+            // leaves keep every key, the separator only has to fall between the halves
+            int keep = minKeySize + 1;
+            z.setKeys(keys, keep, keys.length);
+            y.setKeys(keys, 0, keep);
+            separator = separator(keys[keep - 1], keys[keep]);
+        } else {
+            separator = keys[minKeySize];
+            z.setKeys(keys, minKeySize + 1, keys.length);
+            z.appendChildren(y, minKeySize + 1, y.childrenSize);
+            y.setKeys(keys, 0, minKeySize);
+            y.truncateChildren(minKeySize + 1);
+        }
+
+        //z takes the slot right after y, the separator goes up between them
+        x.insertChildAt(i + 1, z);
+        x.insertKeyAt(i, separator);
+    }
+
+    /**
+     * Shortest prefix of right that is greater than left.
+     *
+     * @param left
+     *            smaller key.
+     * @param right
+     *            greater key.
+     * @return separator s with left &lt; s &lt;= right.
+     */
+    private static byte[] separator(byte[] left, byte[] right) {
+        return Arrays.copyOf(right, commonPrefixLength(left, left.length, right) + 1);
+    }
+
+    /**
+     * Delete key. Every node entered on the way down is first topped up to
+     * more than minKeySize keys (by a shift from a sibling or a merge), so the
+     * removal from the leaf never has to walk back up.
+     *
+     * @param key
+     *            to delete.
+     * @return True if key was found and deleted.
+     */
+    public boolean delete(byte[] key) {
+        if (root == null)
+            return false;
+
+        Node x = root;
+        while (!x.isLeaf())
+            x = fixChildSize(x, x.upperBound(key));
+
+        boolean deleted = false;
+        int i = x.lowerBound(key);
+        if (i < x.keysSize && x.compare(i, key) == 0) {
+            x.removeKeyAt(i);
+            size--;
+            deleted = true;
+        }
+
+        if (root.keysSize == 0)
+            root = root.isLeaf() ? null : root.children[0];
+        return deleted;
+    }
+
+    /**
+     * Delete the UTF-8 encoding of key.
+     *
+     * @param key
+     *            to delete.
+     * @return True if key was found and deleted.
+     */
+    public boolean delete(String key) {
+        return delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Make sure parent's i-th child has more than minKeySize keys and return
+    // the node that now covers its keys
+    private Node fixChildSize(Node parent, int i) {
+        Node child = parent.children[i];
+        if (child.keysSize > minKeySize)
+            return child;
+        if (i > 0 && parent.children[i - 1].keysSize > minKeySize) {
+            shiftFromLeft(parent, i - 1);
+            return child;
+        }
+        if (i < parent.keysSize && parent.children[i + 1].keysSize > minKeySize) {
+            shiftFromRight(parent, i);
+            return child;
+        }
+        if (i < parent.keysSize)
+            return mergeChildren(parent, i);
+        return mergeChildren(parent, i - 1);
+    }
+
+    private void shiftFromLeft(Node parent, int leftIndex) {
+        Node left = parent.children[leftIndex];
+        Node right = parent.children[leftIndex + 1];
+        byte[] moved = left.lastKey();
+        left.removeKeyAt(left.keysSize - 1);
+        if (left.isLeaf()) {
+            right.insertKeyAt(0, moved);
+            parent.setKey(leftIndex, separator(left.lastKey(), moved));
+        } else {
+            right.insertKeyAt(0, parent.key(leftIndex));
+            parent.setKey(leftIndex, moved);
+            right.insertChildAt(0, left.removeChildAt(left.childrenSize - 1));
+        }
+    }
+
+    private void shiftFromRight(Node parent, int leftIndex) {
+        Node left = parent.children[leftIndex];
+        Node right = parent.children[leftIndex + 1];
+        byte[] moved = right.key(0);
+        right.removeKeyAt(0);
+        if (right.isLeaf()) {
+            left.insertKeyAt(left.keysSize, moved);
+            parent.setKey(leftIndex, separator(moved, right.key(0)));
+        } else {
+            left.insertKeyAt(left.keysSize, parent.key(leftIndex));
+            parent.setKey(leftIndex, moved);
+            left.insertChildAt(left.childrenSize, right.removeChildAt(0));
+        }
+    }
+
+    // Merge parent's children at leftIndex and leftIndex + 1, pulling their
+    // separator down between internal nodes
+    private Node mergeChildren(Node parent, int leftIndex) {
+        Node left = parent.children[leftIndex];
+        Node right = parent.children[leftIndex + 1];
+        if (!left.isLeaf())
+            left.insertKeyAt(left.keysSize, parent.key(leftIndex));
+        for (int i = 0; i < right.keysSize; i++)
+            left.insertKeyAt(left.keysSize, right.key(i));
+        if (!left.isLeaf())
+            left.appendChildren(right, 0, right.childrenSize);
+        parent.removeKeyAt(leftIndex);
+        parent.removeChildAt(leftIndex + 1);
+        return left;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    public boolean contains(byte[] key) {
+        if (root == null)
+            return false;
+        Node node = root;
+        while (!node.isLeaf())
+            node = node.children[node.upperBound(key)];
+        int index = node.lowerBound(key);
+        return index < node.keysSize && node.compare(index, key) == 0;
+    }
+
+    public boolean contains(String key) {
+        return contains(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bytes the nodes spend on keys and separators, prefixes included, to
+     * compare against the total length of the keys stored.
+     */
+    public long keyBytes() {
+        return root == null ? 0 : keyBytes(root);
+    }
+
+    private static long keyBytes(Node node) {
+        long bytes = node.prefix.length + node.suffixesSize;
+        for (int i = 0; i < node.childrenSize; i++)
+            bytes += keyBytes(node.children[i]);
+        return bytes;
+    }
+
+    /**
+     * Validate the tree according to the B-Tree invariants.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        if (root == null) return true;
+        return validateNode(root, true, null, null, depth(root), 0);
+    }
+
+    private static int depth(Node node) {
+        int depth = 0;
+        while (!node.isLeaf()) {
+            node = node.children[0];
+            depth++;
+        }
+        return depth;
+    }
+
+    // Keys of node must lie in [lower, upper), null meaning unbounded
+    private boolean validateNode(Node node, boolean isRoot, byte[] lower, byte[] upper, int leafDepth, int depth) {
+        int keySize = node.keysSize;
+        if (keySize > maxKeySize)
+            return false;
+        if (!isRoot && keySize < minKeySize)
+            return false;
+        for (int i = 0; i < keySize; i++) {
+            byte[] key = node.key(i);
+            if (i == 0 && lower != null && compare(lower, key) > 0)
+                return false;
+            // keys of a node are distinct and ascending, and so are separators
+            if (i > 0 && compare(node.key(i - 1), key) >= 0)
+                return false;
+        }
+        if (keySize > 0 && upper != null && compare(node.lastKey(), upper) >= 0)
+            return false;
+        if (node.isLeaf())
+            return depth == leafDepth;
+
+        int childrenSize = node.childrenSize;
+        if (childrenSize != keySize + 1)
+            return false;
+        if (!isRoot && childrenSize < minChildrenSize)
+            return false;
+        if (childrenSize > maxChildrenSize)
+            return false;
+        for (int i = 0; i < childrenSize; i++) {
+            byte[] childLower = i == 0 ? lower : node.key(i - 1);
+            byte[] childUpper = i == keySize ? upper : node.key(i);
+            if (!validateNode(node.children[i], false, childLower, childUpper, leafDepth, depth + 1))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (root == null) return "Tree has no nodes.";
+        return getString(root, "", true);
+    }
+
+    private static String getString(Node node, String prefix, boolean isTail) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(prefix).append((isTail ? "└── " : "├── "));
+        for (int i = 0; i < node.keysSize; i++) {
+            builder.append(new String(node.key(i), StandardCharsets.UTF_8));
+            if (i < node.keysSize - 1)
+                builder.append(", ");
+        }
+        builder.append("\n");
+
+        for (int i = 0; i < node.childrenSize; i++) {
+            boolean last = i == node.childrenSize - 1;
+            builder.append(getString(node.children[i], prefix + (isTail ? "    " : "│   "), last));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Unsigned lexicographic comparison, a proper prefix sorting first.
+     */
+    private static int compare(byte[] a, byte[] b) {
+        return compare(a, 0, a.length, b, 0, b.length);
+    }
+
+    private static int compare(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+        int length = Math.min(aTo - aFrom, bTo - bFrom);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[aFrom + i] & 0xff) - (b[bFrom + i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return (aTo - aFrom) - (bTo - bFrom);
+    }
+
+    // Length of the common prefix of a[0, aLength) and b
+    private static int commonPrefixLength(byte[] a, int aLength, byte[] b) {
+        int length = Math.min(aLength, b.length);
+        int i = 0;
+        while (i < length && a[i] == b[i])
+            i++;
+        return i;
+    }
+
+    private static class Node {
+
+        // shared by every key of the node, only the rest of each key is stored
+        private byte[] prefix = EMPTY;
+        // key i's suffix is suffixes[offsets[i], offsets[i + 1])
+        private byte[] suffixes = EMPTY;
+        private int suffixesSize = 0;
+        private final int[] offsets;
+        private int keysSize = 0;
+        private final Node[] children;
+        private int childrenSize = 0;
+
+        private Node(int maxKeySize, boolean leaf) {
+            this.offsets = new int[maxKeySize + 1];
+            this.children = leaf ? null : new Node[maxKeySize + 1];
+        }
+
+        private boolean isLeaf() {
+            return children == null;
+        }
+
+        /**
+         * Compare key i with key.
+         *
+         * @return negative, zero or positive as key i is less than, equal to
+         *         or greater than key.
+         */
+        private int compare(int i, byte[] key) {
+            int byPrefix = comparePrefix(key);
+            if (byPrefix != 0)
+                return byPrefix;
+            return ByteKeyBTree.compare(suffixes, offsets[i], offsets[i + 1], key, prefix.length, key.length);
+        }
+
+        /**
+         * Compare every key of the node with key as far as the prefix decides.
+         *
+         * @return the sign every key compares with, or zero if key starts with
+         *         the prefix and its suffix has to be compared.
+         */
+        private int comparePrefix(byte[] key) {
+            int length = Math.min(prefix.length, key.length);
+            for (int i = 0; i < length; i++) {
+                int diff = (prefix[i] & 0xff) - (key[i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            // key is a proper prefix of the prefix, so smaller than every key
+            return prefix.length > key.length ? 1 : 0;
+        }
+
+        /**
+         * Index of the first key greater than or equal to key. The prefix is
+         * compared once, the binary search only looks at suffixes.
+         */
+        private int lowerBound(byte[] key) {
+            int byPrefix = comparePrefix(key);
+            if (byPrefix != 0)
+                return byPrefix > 0 ? 0 : keysSize;
+            int low = 0;
+            int high = keysSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ByteKeyBTree.compare(suffixes, offsets[mid], offsets[mid + 1], key, prefix.length, key.length) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * Index of the first key strictly greater than key, which for an
+         * internal node is the child key belongs to.
+         */
+        private int upperBound(byte[] key) {
+            int byPrefix = comparePrefix(key);
+            if (byPrefix != 0)
+                return byPrefix > 0 ? 0 : keysSize;
+            int low = 0;
+            int high = keysSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ByteKeyBTree.compare(suffixes, offsets[mid], offsets[mid + 1], key, prefix.length, key.length) <= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        private byte[] key(int i) {
+            int suffixLength = offsets[i + 1] - offsets[i];
+            byte[] key = Arrays.copyOf(prefix, prefix.length + suffixLength);
+            System.arraycopy(suffixes, offsets[i], key, prefix.length, suffixLength);
+            return key;
+        }
+
+        private byte[] lastKey() {
+            return key(keysSize - 1);
+        }
+
+        private byte[][] keys(int from, int to) {
+            byte[][] keys = new byte[to - from][];
+            for (int i = from; i < to; i++)
+                keys[i - from] = key(i);
+            return keys;
+        }
+
+        /**
+         * Replace the keys with sorted keys[from, to). Their common prefix is
+         * that of the first and the last one.
+         */
+        private void setKeys(byte[][] keys, int from, int to) {
+            keysSize = 0;
+            suffixesSize = 0;
+            if (from == to)
+                return;
+            byte[] first = keys[from];
+            prefix = Arrays.copyOf(first, commonPrefixLength(first, first.length, keys[to - 1]));
+            int bytes = 0;
+            for (int i = from; i < to; i++)
+                bytes += keys[i].length - prefix.length;
+            if (suffixes.length < bytes)
+                suffixes = new byte[bytes];
+            for (int i = from; i < to; i++) {
+                int suffixLength = keys[i].length - prefix.length;
+                System.arraycopy(keys[i], prefix.length, suffixes, suffixesSize, suffixLength);
+                offsets[keysSize] = suffixesSize;
+                suffixesSize += suffixLength;
+                keysSize++;
+            }
+            offsets[keysSize] = suffixesSize;
+        }
+
+        private void insertKeyAt(int index, byte[] key) {
+            if (keysSize == 0) {
+                prefix = key.clone();
+                suffixesSize = 0;
+                offsets[0] = 0;
+            } else {
+                int common = commonPrefixLength(prefix, prefix.length, key);
+                if (common < prefix.length)
+                    shortenPrefix(common);
+            }
+            int suffixLength = key.length - prefix.length;
+            ensureCapacity(suffixesSize + suffixLength);
+            int at = offsets[index];
+            System.arraycopy(suffixes, at, suffixes, at + suffixLength, suffixesSize - at);
+            System.arraycopy(key, prefix.length, suffixes, at, suffixLength);
+            suffixesSize += suffixLength;
+            for (int i = keysSize + 1; i > index; i--)
+                offsets[i] = offsets[i - 1] + suffixLength;
+            keysSize++;
+        }
+
+        private void removeKeyAt(int index) {
+            int at = offsets[index];
+            int suffixLength = offsets[index + 1] - at;
+            System.arraycopy(suffixes, at + suffixLength, suffixes, at, suffixesSize - at - suffixLength);
+            suffixesSize -= suffixLength;
+            for (int i = index; i < keysSize; i++)
+                offsets[i] = offsets[i + 1] - suffixLength;
+            keysSize--;
+        }
+
+        private void setKey(int index, byte[] key) {
+            removeKeyAt(index);
+            insertKeyAt(index, key);
+        }
+
+        // Keep only the first length bytes as prefix, moving the rest into every suffix
+        private void shortenPrefix(int length) {
+            int moved = prefix.length - length;
+            byte[] grown = new byte[Math.max(suffixes.length, suffixesSize + keysSize * moved)];
+            int size = 0;
+            for (int i = 0; i < keysSize; i++) {
+                int suffixLength = offsets[i + 1] - offsets[i];
+                System.arraycopy(prefix, length, grown, size, moved);
+                System.arraycopy(suffixes, offsets[i], grown, size + moved, suffixLength);
+                offsets[i] = size;
+                size += moved + suffixLength;
+            }
+            offsets[keysSize] = size;
+            suffixes = grown;
+            suffixesSize = size;
+            prefix = Arrays.copyOf(prefix, length);
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (suffixes.length < bytes)
+                suffixes = Arrays.copyOf(suffixes, Math.max(bytes, 2 * suffixes.length));
+        }
+
+        private void insertChildAt(int index, Node child) {
+            System.arraycopy(children, index, children, index + 1, childrenSize - index);
+            children[index] = child;
+            childrenSize++;
+        }
+
+        private Node removeChildAt(int index) {
+            Node child = children[index];
+            System.arraycopy(children, index + 1, children, index, childrenSize - index - 1);
+            childrenSize--;
+            children[childrenSize] = null;
+            return child;
+        }
+
+        private void appendChildren(Node source, int from, int to) {
+            System.arraycopy(source.children, from, children, childrenSize, to - from);
+            childrenSize += to - from;
+        }
+
+        private void truncateChildren(int childCount) {
+            Arrays.fill(children, childCount, childrenSize, null);
+            childrenSize = childCount;
+        }
+
+        @Override
+        public String toString() {
+            return "prefix=" + new String(prefix, StandardCharsets.UTF_8)
+                 + " keySize=" + keysSize + " children=" + childrenSize;
+        }
+    }
+}
@@ -0,0 +1,730 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe B-Tree using per-node latches. Every node's latch is a
+ * StampedLock whose stamp acts as the node's version: it only advances when a
+ * writer latches the node to change it.
+ *
+ * Lookups do not latch at all in the common case. A reader remembers the
+ * stamp of each node it passes, and only trusts what it read once the stamp
+ * is still valid after it has taken the stamp of the next node down. A failed
+ * validation restarts the lookup from the root, and a lookup that keeps
+ * failing falls back to read latch coupling.
+ *
+ * Writers descend the same way (optimistic lock coupling) and only turn the
+ * stamps of the nodes they change into write latches, with
+ * tryConvertToWriteLock, which also validates everything read under the
+ * stamp. A plain insert or delete therefore latches just its leaf, a split
+ * latches the parent and the child it splits, and the nodes above keep their
+ * versions. Writers split full nodes (insert) or top up minimal nodes
+ * (delete) on the way down, like BTree.insert does, so no change ever has to
+ * travel up the tree. A writer that finds a latch taken or a stamp gone
+ * stale restarts from the root, and one that keeps failing falls back to
+ * write latch coupling (latch crabbing) from the root.
+ *
+ * Latch coupling latches a child before it lets go of the parent, and never
+ * latches upwards, so latches are always taken in root-to-leaf order.
+ * Optimistic writers never wait for a latch while holding one, so neither
+ * kind can deadlock. At most a node, its child and one sibling of that child
+ * are latched at any time.
+ */
+@SuppressWarnings("unchecked")
+public class ConcurrentBTree<T extends Comparable<T>> {
+
+    // Optimistic operations restarted this often fall back to latch coupling
+    private static final int MAX_OPTIMISTIC_ATTEMPTS = 8;
+    // returned by deleteOptimistic when it has to be retried
+    private static final Object RETRY = new Object();
+
+    // Default to 2-3 Tree
+    private int minKeySize = 1;
+    private int minChildrenSize = minKeySize + 1; // 2
+    private int maxKeySize = 2 * (minKeySize + 1) - 1; // 2
+    private int maxChildrenSize = maxKeySize + 1; // 3
+
+    // Guards the root reference itself, held until the root node is latched
+    // (readers) or known not to change any more (writers). The root is only
+    // replaced while the old root is write latched as well.
+    private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+    // volatile for optimistic readers, which do not take rootLatch
+    private volatile Node<T> root = null;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Constructor for B-Tree which defaults to a 2-3 B-Tree.
+     */
+    public ConcurrentBTree() { }
+
+    /**
+     * Constructor for B-Tree of ordered parameter. Order here means minimum
+     * number of keys in a non-root node.
+     *
+     * @param order
+     *            of the B-Tree.
+     */
+    public ConcurrentBTree(int order) {
+        this.minKeySize = order - 1;
+        this.minChildrenSize = minKeySize + 1;
+        this.maxKeySize = 2 * (minKeySize + 1) - 1;
+        this.maxChildrenSize = maxKeySize + 1;
+    }
+
+    public boolean contains(T value) {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+            int result = containsOptimistic(value);
+            if (result >= 0)
+                return result == 1;
+        }
+        return containsLatched(value);
+    }
+
+    /**
+     * Look value up without latching any node. Package-private so tests can
+     * count how often it has to be retried.
+     *
+     * @return 1 if found, 0 if not found, -1 if a writer interfered and the
+     *         lookup has to be retried.
+     */
+    int containsOptimistic(T value) {
+        Node<T> node = root;
+        if (node == null)
+            return 0;
+        long stamp = node.latch.tryOptimisticRead();
+        if (root != node)
+            return -1;
+        try {
+            while (true) {
+                // nothing read here counts until the stamp validates
+                int index = node.lowerBound(value);
+                boolean found = index < node.keysSize && node.keys[index].compareTo(value) == 0;
+                Node<T> child = (found || node.isLeaf()) ? null : node.children[index];
+                if (!node.latch.validate(stamp))
+                    return -1;
+                if (found)
+                    return 1;
+                if (child == null)
+                    return 0;
+                long childStamp = child.latch.tryOptimisticRead();
+                // the child must still have been node's child when its stamp was taken
+                if (!node.latch.validate(stamp))
+                    return -1;
+                node = child;
+                stamp = childStamp;
+            }
+        } catch (RuntimeException e) {
+            // a torn read of arrays being shifted, as good as a failed validation
+            return -1;
+        }
+    }
+
+    private boolean containsLatched(T value) {
+        rootLatch.readLock().lock();
+        Node<T> node = root;
+        if (node == null) {
+            rootLatch.readLock().unlock();
+            return false;
+        }
+        node.readLatch.lock();
+        rootLatch.readLock().unlock();
+
+        while (true) {
+            int index = node.lowerBound(value);
+            if (index < node.keysSize && node.keys[index].compareTo(value) == 0) {
+                node.readLatch.unlock();
+                return true;
+            }
+            if (node.isLeaf()) {
+                node.readLatch.unlock();
+                return false;
+            }
+            Node<T> child = node.children[index];
+            child.readLatch.lock();
+            node.readLatch.unlock();
+            node = child;
+        }
+    }
+
+    /**
+     * Insert value, splitting full nodes on the way down.
+     *
+     * @param value
+     *            to insert.
+     * @return True.
+     */
+    public boolean insert(T value) {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+            if (insertOptimistic(value)) {
+                size.incrementAndGet();
+                return true;
+            }
+        }
+        return insertLatched(value);
+    }
+
+    /**
+     * Insert value latching only the leaf it goes into and the nodes split on
+     * the way there.
+     *
+     * @return False if a writer interfered and the insert has to be retried,
+     *         nothing was inserted then.
+     */
+    private boolean insertOptimistic(T value) {
+        Node<T> node = root;
+        if (node == null || node.keysSize == maxKeySize) {
+            // the root itself is replaced, which only happens under rootLatch
+            growRoot();
+            return false;
+        }
+        long stamp = node.latch.tryOptimisticRead();
+        if (stamp == 0 || root != node)
+            return false;
+        long leafStamp;
+        try {
+            while (true) {
+                if (node.isLeaf()) {
+                    leafStamp = node.latch.tryConvertToWriteLock(stamp);
+                    if (leafStamp == 0)
+                        return false;
+                    break;
+                }
+                int i = node.lowerBound(value);
+                Node<T> child = node.children[i];
+                long childStamp = child.latch.tryOptimisticRead();
+                boolean full = child.keysSize == maxKeySize;
+                // the child must still have been node's child when its stamp was taken
+                if (!node.latch.validate(stamp) || childStamp == 0)
+                    return false;
+                if (!full) {
+                    node = child;
+                    stamp = childStamp;
+                    continue;
+                }
+                long writeStamp = node.latch.tryConvertToWriteLock(stamp);
+                if (writeStamp == 0)
+                    return false;
+                long childWriteStamp = child.latch.tryConvertToWriteLock(childStamp);
+                if (childWriteStamp == 0 || node.keysSize == maxKeySize) {
+                    // node is a root that filled up since it was checked
+                    if (childWriteStamp != 0)
+                        child.latch.unlockWrite(childWriteStamp);
+                    node.latch.unlockWrite(writeStamp);
+                    return false;
+                }
+                splitChild(node, i).writeLatch.unlock();
+                child.latch.unlockWrite(childWriteStamp);
+                // go on from node, now under the version the split gave it
+                stamp = node.latch.tryConvertToOptimisticRead(writeStamp);
+            }
+        } catch (RuntimeException e) {
+            // a torn read of arrays being shifted, as good as a failed validation
+            return false;
+        }
+        if (node.keysSize == maxKeySize) {
+            // only a root leaf can fill up between its check and its latch
+            node.latch.unlockWrite(leafStamp);
+            return false;
+        }
+        node.insertKeyAt(node.upperBound(value), value);
+        node.latch.unlockWrite(leafStamp);
+        return true;
+    }
+
+    // Create the root or split it if it is full
+    private void growRoot() {
+        rootLatch.writeLock().lock();
+        if (root == null) {
+            root = new Node<T>(maxKeySize);
+        } else {
+            Node<T> x = root;
+            x.writeLatch.lock();
+            if (x.keysSize == maxKeySize) {
+                Node<T> s = new Node<T>(maxKeySize);
+                s.writeLatch.lock();
+                s.insertChildAt(0, x);
+                splitChild(s, 0).writeLatch.unlock();
+                root = s;
+                s.writeLatch.unlock();
+            }
+            x.writeLatch.unlock();
+        }
+        rootLatch.writeLock().unlock();
+    }
+
+    // Insert with write latch coupling from the root
+    private boolean insertLatched(T value) {
+        rootLatch.writeLock().lock();
+        if (root == null)
+            root = new Node<T>(maxKeySize);
+        Node<T> x = root;
+        x.writeLatch.lock();
+        if (x.keysSize == maxKeySize) {
+            Node<T> s = new Node<T>(maxKeySize);
+            s.writeLatch.lock();
+            s.insertChildAt(0, x);
+            splitChild(s, 0).writeLatch.unlock();
+            root = s;
+            x.writeLatch.unlock();
+            x = s;
+        }
+        // the root is not full, so nothing below can replace it any more
+        rootLatch.writeLock().unlock();
+
+        while (!x.isLeaf()) {
+            int i = x.lowerBound(value);
+            Node<T> child = x.children[i];
+            child.writeLatch.lock();
+            if (child.keysSize == maxKeySize) {
+                Node<T> z = splitChild(x, i);
+                if (value.compareTo(x.keys[i]) > 0) {
+                    child.writeLatch.unlock();
+                    child = z;
+                } else {
+                    z.writeLatch.unlock();
+                }
+            }
+            x.writeLatch.unlock();
+            x = child;
+        }
+        x.insertKeyAt(x.upperBound(value), value);
+        x.writeLatch.unlock();
+        size.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Split the full i-th child of x, both already write latched by the
+     * caller. Returns the new right sibling, also write latched.
+     */
+    private Node<T> splitChild(Node<T> x, int i) {
+        Node<T> y = x.children[i];
+        Node<T> z = new Node<T>(maxKeySize);
+        z.writeLatch.lock();
+
+        // move the upper half of y's keys and children to z in one block each
+        z.appendKeys(y, minKeySize + 1, y.keysSize);
+        if (!y.isLeaf())
+            z.appendChildren(y, minKeySize + 1, y.childrenSize);
+
+        //z takes the slot right after y, the median goes up between them
+        x.insertChildAt(i + 1, z);
+        x.insertKeyAt(i, y.keys[minKeySize]);
+        y.truncate(minKeySize, y.isLeaf() ? 0 : minKeySize + 1);
+        return z;
+    }
+
+    /**
+     * Delete one occurrence of value. Every node entered on the way down is
+     * first topped up to more than minKeySize keys by a shift from a sibling
+     * or a merge, so no latch above the current node is ever needed again.
+     *
+     * @param value
+     *            to delete.
+     * @return the deleted key or null if value was not in the tree.
+     */
+    public T delete(T value) {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+            Object deleted = deleteOptimistic(value);
+            if (deleted != RETRY)
+                return (T) deleted;
+        }
+        rootLatch.writeLock().lock();
+        Node<T> x = root;
+        if (x == null) {
+            rootLatch.writeLock().unlock();
+            return null;
+        }
+        x.writeLatch.lock();
+        return deleteFrom(x, value, true);
+    }
+
+    /**
+     * Delete value descending without latches through nodes that have a key
+     * to spare for the child below them. A leaf with a key to spare is the
+     * only node latched. Otherwise the first node that has to change is
+     * latched and the delete goes on from there as deleteFrom.
+     *
+     * @return the deleted key, null if value was not in the tree, or RETRY
+     *         if a writer interfered and nothing was deleted.
+     */
+    private Object deleteOptimistic(T value) {
+        Node<T> node = root;
+        if (node == null)
+            return null;
+        long stamp = node.latch.tryOptimisticRead();
+        if (stamp == 0 || root != node)
+            return RETRY;
+        boolean atRoot = true;
+        try {
+            while (true) {
+                int i = node.lowerBound(value);
+                boolean found = i < node.keysSize && node.keys[i].compareTo(value) == 0;
+                boolean leaf = node.isLeaf();
+                if (!found) {
+                    if (leaf)
+                        return node.latch.validate(stamp) ? null : RETRY;
+                    Node<T> child = node.children[i];
+                    long childStamp = child.latch.tryOptimisticRead();
+                    boolean spare = child.keysSize > minKeySize;
+                    if (!node.latch.validate(stamp) || childStamp == 0)
+                        return RETRY;
+                    if (spare) {
+                        node = child;
+                        stamp = childStamp;
+                        atRoot = false;
+                        continue;
+                    }
+                } else if (leaf && (!atRoot || node.keysSize > 1)) {
+                    // the leaf keeps enough keys, nothing else changes
+                    long writeStamp = node.latch.tryConvertToWriteLock(stamp);
+                    if (writeStamp == 0)
+                        return RETRY;
+                    T deleted = node.keys[i];
+                    node.removeKeyAt(i);
+                    node.latch.unlockWrite(writeStamp);
+                    size.decrementAndGet();
+                    return deleted;
+                }
+                // node changes, and at the root so may the root reference
+                if (atRoot && !rootLatch.writeLock().tryLock())
+                    return RETRY;
+                if (node.latch.tryConvertToWriteLock(stamp) == 0) {
+                    if (atRoot)
+                        rootLatch.writeLock().unlock();
+                    return RETRY;
+                }
+                break;
+            }
+        } catch (RuntimeException e) {
+            // a torn read of arrays being shifted, as good as a failed validation
+            return RETRY;
+        }
+        return deleteFrom(node, value, atRoot);
+    }
+
+    /**
+     * Delete value from the subtree of x, which is write latched and, unless
+     * it is the root, has a key to spare. Releases every latch it holds,
+     * rootLatch included when holdingRoot.
+     */
+    private T deleteFrom(Node<T> x, T value, boolean holdingRoot) {
+        T deleted = null;
+        boolean found = false;
+        while (true) {
+            int i = x.lowerBound(value);
+            Node<T> next;
+            if (i < x.keysSize && x.keys[i].compareTo(value) == 0) {
+                if (!found) {
+                    deleted = x.keys[i];
+                    found = true;
+                }
+                if (x.isLeaf()) {
+                    x.removeKeyAt(i);
+                    if (holdingRoot && x.keysSize == 0)
+                        root = null;
+                    break;
+                }
+                Node<T> left = x.children[i];
+                Node<T> right = x.children[i + 1];
+                left.writeLatch.lock();
+                if (left.keysSize > minKeySize) {
+                    // replace with the predecessor and delete that instead
+                    value = getGreatestKey(left);
+                    x.keys[i] = value;
+                    next = left;
+                } else {
+                    right.writeLatch.lock();
+                    if (right.keysSize > minKeySize) {
+                        value = getSmallestKey(right);
+                        x.keys[i] = value;
+                        left.writeLatch.unlock();
+                        next = right;
+                    } else {
+                        next = mergeChildren(x, i);
+                    }
+                }
+            } else {
+                if (x.isLeaf())
+                    break;
+                next = fixChildSize(x, i);
+            }
+
+            if (holdingRoot) {
+                if (x.keysSize == 0) {
+                    // the root's last two children were merged, the tree shrinks
+                    root = next;
+                }
+                rootLatch.writeLock().unlock();
+                holdingRoot = false;
+            }
+            x.writeLatch.unlock();
+            x = next;
+        }
+
+        x.writeLatch.unlock();
+        if (holdingRoot)
+            rootLatch.writeLock().unlock();
+        if (found)
+            size.decrementAndGet();
+        return deleted;
+    }
+
+    /**
+     * Make sure parent's i-th child has more than minKeySize keys. Returns
+     * the node to continue in, write latched; any sibling touched is latched
+     * and released here.
+     */
+    private Node<T> fixChildSize(Node<T> parent, int i) {
+        Node<T> child = parent.children[i];
+        child.writeLatch.lock();
+        if (child.keysSize > minKeySize)
+            return child;
+        if (i > 0) {
+            Node<T> left = parent.children[i - 1];
+            left.writeLatch.lock();
+            if (left.keysSize > minKeySize) {
+                shiftFromLeft(parent, i - 1);
+                left.writeLatch.unlock();
+                return child;
+            }
+            if (i == parent.keysSize) {
+                // last child with a minimal left neighbor, merge into it
+                return mergeChildren(parent, i - 1);
+            }
+            left.writeLatch.unlock();
+        }
+        Node<T> right = parent.children[i + 1];
+        right.writeLatch.lock();
+        if (right.keysSize > minKeySize) {
+            shiftFromRight(parent, i);
+            right.writeLatch.unlock();
+            return child;
+        }
+        return mergeChildren(parent, i);
+    }
+
+    private void shiftFromLeft(Node<T> parent, int leftIndex) {
+        Node<T> left = parent.children[leftIndex];
+        Node<T> right = parent.children[leftIndex + 1];
+        right.insertKeyAt(0, parent.keys[leftIndex]);
+        parent.keys[leftIndex] = left.keys[left.keysSize - 1];
+        left.removeKeyAt(left.keysSize - 1);
+        if (!left.isLeaf())
+            right.insertChildAt(0, left.removeChildAt(left.childrenSize - 1));
+    }
+
+    private void shiftFromRight(Node<T> parent, int leftIndex) {
+        Node<T> left = parent.children[leftIndex];
+        Node<T> right = parent.children[leftIndex + 1];
+        left.insertKeyAt(left.keysSize, parent.keys[leftIndex]);
+        parent.keys[leftIndex] = right.keys[0];
+        right.removeKeyAt(0);
+        if (!right.isLeaf())
+            left.insertChildAt(left.childrenSize, right.removeChildAt(0));
+    }
+
+    /**
+     * Pull parent's key at leftIndex down between its two children, both
+     * write latched, and merge them. Returns the left child, still latched;
+     * the right one is released and no longer reachable.
+     */
+    private Node<T> mergeChildren(Node<T> parent, int leftIndex) {
+        Node<T> left = parent.children[leftIndex];
+        Node<T> right = parent.children[leftIndex + 1];
+        left.insertKeyAt(left.keysSize, parent.keys[leftIndex]);
+        left.appendKeys(right, 0, right.keysSize);
+        left.appendChildren(right, 0, right.childrenSize);
+        parent.removeKeyAt(leftIndex);
+        parent.removeChildAt(leftIndex + 1);
+        right.writeLatch.unlock();
+        return left;
+    }
+
+    // Greatest key below node, read latching the way down
+    private T getGreatestKey(Node<T> node) {
+        Node<T> current = node;
+        while (!current.isLeaf()) {
+            Node<T> child = current.children[current.childrenSize - 1];
+            child.readLatch.lock();
+            if (current != node)
+                current.readLatch.unlock();
+            current = child;
+        }
+        T key = current.keys[current.keysSize - 1];
+        if (current != node)
+            current.readLatch.unlock();
+        return key;
+    }
+
+    // Smallest key below node, read latching the way down
+    private T getSmallestKey(Node<T> node) {
+        Node<T> current = node;
+        while (!current.isLeaf()) {
+            Node<T> child = current.children[0];
+            child.readLatch.lock();
+            if (current != node)
+                current.readLatch.unlock();
+            current = child;
+        }
+        T key = current.keys[0];
+        if (current != node)
+            current.readLatch.unlock();
+        return key;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Validate the tree according to the B-Tree invariants. Only meaningful
+     * while no writer is running.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        rootLatch.readLock().lock();
+        try {
+            if (root == null) return true;
+            return validateNode(root, true);
+        } finally {
+            rootLatch.readLock().unlock();
+        }
+    }
+
+    private boolean validateNode(Node<T> node, boolean isRoot) {
+        int keySize = node.keysSize;
+        for (int i = 1; i < keySize; i++) {
+            if (node.keys[i - 1].compareTo(node.keys[i]) > 0)
+                return false;
+        }
+        int childrenSize = node.childrenSize;
+        if (keySize > maxKeySize)
+            return false;
+        if (!isRoot && keySize < minKeySize)
+            return false;
+        if (childrenSize == 0)
+            return true;
+        if (keySize != childrenSize - 1)
+            return false;
+        if (!isRoot && childrenSize < minChildrenSize)
+            return false;
+        if (childrenSize > maxChildrenSize)
+            return false;
+
+        for (int i = 0; i < childrenSize; i++) {
+            Node<T> c = node.children[i];
+            if (i > 0 && c.keys[0].compareTo(node.keys[i - 1]) < 0)
+                return false;
+            if (i < keySize && c.keys[c.keysSize - 1].compareTo(node.keys[i]) > 0)
+                return false;
+            if (!validateNode(c, false))
+                return false;
+        }
+        return true;
+    }
+
+    private static class Node<T extends Comparable<T>> {
+
+        // the stamp doubles as the node's version for optimistic readers
+        private final StampedLock latch = new StampedLock();
+        private final Lock readLatch = latch.asReadLock();
+        private final Lock writeLatch = latch.asWriteLock();
+        private final T[] keys;
+        private int keysSize = 0;
+        // allocated once the node gets its first child
+        private Node<T>[] children = null;
+        private int childrenSize = 0;
+
+        private Node(int maxKeySize) {
+            this.keys = (T[]) new Comparable[maxKeySize];
+        }
+
+        private boolean isLeaf() {
+            return childrenSize == 0;
+        }
+
+        private int lowerBound(T value) {
+            int low = 0;
+            int high = keysSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(value) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        private int upperBound(T value) {
+            int low = 0;
+            int high = keysSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(value) <= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        private void insertKeyAt(int index, T value) {
+            System.arraycopy(keys, index, keys, index + 1, keysSize - index);
+            keys[index] = value;
+            keysSize++;
+        }
+
+        private void removeKeyAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, keysSize - index - 1);
+            keysSize--;
+            keys[keysSize] = null;
+        }
+
+        private void appendKeys(Node<T> source, int from, int to) {
+            System.arraycopy(source.keys, from, keys, keysSize, to - from);
+            keysSize += to - from;
+        }
+
+        private void truncate(int keyCount, int childCount) {
+            Arrays.fill(keys, keyCount, keysSize, null);
+            keysSize = keyCount;
+            if (children != null)
+                Arrays.fill(children, childCount, childrenSize, null);
+            childrenSize = childCount;
+        }
+
+        private void insertChildAt(int index, Node<T> child) {
+            ensureChildren();
+            System.arraycopy(children, index, children, index + 1, childrenSize - index);
+            children[index] = child;
+            childrenSize++;
+        }
+
+        private Node<T> removeChildAt(int index) {
+            Node<T> child = children[index];
+            System.arraycopy(children, index + 1, children, index, childrenSize - index - 1);
+            childrenSize--;
+            children[childrenSize] = null;
+            return child;
+        }
+
+        private void appendChildren(Node<T> source, int from, int to) {
+            if (to == from)
+                return;
+            ensureChildren();
+            System.arraycopy(source.children, from, children, childrenSize, to - from);
+            childrenSize += to - from;
+        }
+
+        private void ensureChildren() {
+            // a node has at most one child more than it can hold keys
+            if (children == null)
+                children = new Node[keys.length + 1];
+        }
+    }
+}
@@ -0,0 +1,467 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * BTree that survives restarts. Every change is appended to a write-ahead log
+ * and the tree is periodically written out as a checkpoint, so recovery loads
+ * the checkpoint with BTree.bulkLoad and replays only the log written since.
+ *
+ * Log appends are buffered and made durable in groups: the log is fsynced
+ * once every groupCommitSize records, or on sync(), checkpoint() and close().
+ * A crash loses at most the changes since the last fsync.
+ *
+ * The directory holds one checkpoint file and one or more numbered logs:
+ *
+ * <pre>
+ * checkpoint   | magic (8) | keyWidth (4) | next log (8) | count (8) | key 0 .. key count-1 | crc (4) |
+ * wal-N.log    | magic (8) | keyWidth (4) | record .. |
+ * record       | op (1) | key | crc (4) |
+ * </pre>
+ *
+ * A checkpoint names the first log it does not contain. It is written while
+ * the next log is already open and replaces the previous one with an atomic
+ * rename, so a crash at any point leaves either the old checkpoint and all of
+ * its logs or the new checkpoint and the logs it needs.
+ */
+public class DurableBTree<T extends Comparable<T>> implements Closeable {
+
+    private static final long CHECKPOINT_MAGIC = 0x4254726565436b31L; // "BTreeCk1"
+    private static final long LOG_MAGIC = 0x425472656557616cL; // "BTreeWal"
+    private static final int HEADER = 12;
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final byte REMOVE = 3;
+
+    // leave room in the loaded nodes so the first inserts do not all split
+    private static final double CHECKPOINT_FILL_FACTOR = 0.9;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final PagedBTree.KeyCodec<T> codec;
+    private final BTree<T> tree;
+    private final int recordSize;
+    private final int groupCommitSize;
+    private final long checkpointInterval;
+
+    // records appended but not yet written to the log
+    private final ByteBuffer pending;
+    private int pendingRecords = 0;
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel log;
+    private long logNumber;
+    private long recordsSinceCheckpoint = 0;
+
+    /**
+     * Open the tree stored in directory, creating it if there is none. The log
+     * is fsynced every 64 records and checkpointed every 2^20 records.
+     *
+     * @param directory
+     *            to keep the checkpoint and logs in.
+     * @param order
+     *            of the B-Tree, see BTree(int order).
+     * @param codec
+     *            to store keys with.
+     * @throws IOException
+     *             if the files cannot be read or are corrupt.
+     */
+    public DurableBTree(Path directory, int order, PagedBTree.KeyCodec<T> codec) throws IOException {
+        this(directory, order, codec, 64, 1 << 20);
+    }
+
+    /**
+     * Open the tree stored in directory, creating it if there is none.
+     *
+     * @param directory
+     *            to keep the checkpoint and logs in.
+     * @param order
+     *            of the B-Tree, see BTree(int order).
+     * @param codec
+     *            to store keys with.
+     * @param groupCommitSize
+     *            number of records written and fsynced together.
+     * @param checkpointInterval
+     *            number of logged changes after which a checkpoint is taken,
+     *            zero to only checkpoint when asked to.
+     * @throws IOException
+     *             if the files cannot be read or are corrupt.
+     */
+    public DurableBTree(Path directory, int order, PagedBTree.KeyCodec<T> codec, int groupCommitSize, long checkpointInterval) throws IOException {
+        if (groupCommitSize < 1)
+            throw new IllegalArgumentException("groupCommitSize must be positive");
+        if (checkpointInterval < 0)
+            throw new IllegalArgumentException("checkpointInterval must not be negative");
+        this.directory = directory;
+        this.codec = codec;
+        this.tree = new BTree<T>(order);
+        this.recordSize = 1 + codec.width() + Integer.BYTES;
+        this.groupCommitSize = groupCommitSize;
+        this.checkpointInterval = checkpointInterval;
+        this.pending = ByteBuffer.allocate(groupCommitSize * recordSize);
+        recover();
+    }
+
+    /**
+     * Insert value and log it.
+     *
+     * @param value
+     *            to insert.
+     * @return True.
+     */
+    public boolean insert(T value) {
+        boolean inserted = tree.insert(value);
+        append(INSERT, value);
+        return inserted;
+    }
+
+    /**
+     * Delete value with BTree.delete and log it if it was found.
+     *
+     * @param value
+     *            to delete.
+     * @return the deleted value, or null if it was not in the tree.
+     */
+    public T delete(T value) {
+        // BTree.delete expects the value to be there
+        if (!tree.contains(value))
+            return null;
+        T deleted = tree.delete(value);
+        if (deleted != null)
+            append(DELETE, value);
+        return deleted;
+    }
+
+    /**
+     * Delete value with BTree.remove and log it if it was found.
+     *
+     * @param value
+     *            to remove.
+     * @return the removed value, or null if it was not in the tree.
+     */
+    public T remove(T value) {
+        T removed = tree.remove(value);
+        if (removed != null)
+            append(REMOVE, value);
+        return removed;
+    }
+
+    public boolean contains(T value) {
+        return tree.contains(value);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Validate the tree according to the B-Tree invariants.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        return tree.validate();
+    }
+
+    /**
+     * Write and fsync every logged change that is still buffered.
+     *
+     * @throws IOException
+     *             if the log cannot be written.
+     */
+    public void sync() throws IOException {
+        writePending();
+        log.force(false);
+    }
+
+    /**
+     * Write the whole tree to a new checkpoint and drop the logs it replaces.
+     * The log is switched before the checkpoint is written, so recovery
+     * replays nothing the checkpoint already contains.
+     *
+     * @throws IOException
+     *             if the checkpoint or the new log cannot be written.
+     */
+    public void checkpoint() throws IOException {
+        sync();
+        long previous = logNumber;
+        openLog(previous + 1, true);
+
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // written on the writer's thread, so the live tree cannot change
+            // underneath; a snapshot would only make later writes copy nodes
+            CRC32 checksum = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(IO_BUFFER_SIZE, HEADER + 2 * Long.BYTES));
+            buffer.putLong(CHECKPOINT_MAGIC).putInt(codec.width()).putLong(logNumber).putLong(tree.size());
+            for (T key : tree) {
+                if (buffer.remaining() < codec.width())
+                    writeFully(channel, buffer, checksum);
+                codec.write(buffer, buffer.position(), key);
+                buffer.position(buffer.position() + codec.width());
+            }
+            writeFully(channel, buffer, checksum);
+            buffer.putInt((int) checksum.getValue());
+            writeFully(channel, buffer, null);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        Files.deleteIfExists(logPath(previous));
+        recordsSinceCheckpoint = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        log.close();
+    }
+
+    @Override
+    public String toString() {
+        return tree.toString();
+    }
+
+    private void append(byte op, T value) {
+        int start = pending.position();
+        pending.put(op);
+        codec.write(pending, pending.position(), value);
+        pending.position(pending.position() + codec.width());
+        crc.reset();
+        crc.update(pending.array(), start, 1 + codec.width());
+        pending.putInt((int) crc.getValue());
+        pendingRecords++;
+        recordsSinceCheckpoint++;
+        try {
+            if (pendingRecords == groupCommitSize)
+                sync();
+            if (checkpointInterval > 0 && recordsSinceCheckpoint >= checkpointInterval)
+                checkpoint();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not write the log of " + directory, e);
+        }
+    }
+
+    private void writePending() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining())
+            log.write(pending);
+        pending.clear();
+        pendingRecords = 0;
+    }
+
+    /**
+     * Load the checkpoint, replay the logs written after it and open the
+     * last one for appending. A log ending in a partial or corrupt record,
+     * left by a crash during a write, is cut back to its last good record.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        long firstLog = 0;
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint))
+            firstLog = loadCheckpoint(checkpoint);
+
+        List<Long> numbers = new ArrayList<Long>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path path : logs) {
+                String name = path.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+        long last = firstLog;
+        for (long number : numbers) {
+            if (number < firstLog) {
+                // already contained in the checkpoint
+                Files.delete(logPath(number));
+                continue;
+            }
+            replay(logPath(number));
+            last = number;
+        }
+        openLog(last, false);
+    }
+
+    // Returns the number of the first log the checkpoint does not contain
+    private long loadCheckpoint(Path checkpoint) throws IOException {
+        try (FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+            buffer.limit(0);
+            CRC32 checksum = new CRC32();
+            int width = codec.width();
+            // the trailing checksum is excluded from what is summed
+            long body = channel.size() - Integer.BYTES;
+            long[] position = { 0 };
+            if (!fill(channel, buffer, position, body, HEADER + 2 * Long.BYTES, checksum)
+                    || buffer.getLong() != CHECKPOINT_MAGIC || buffer.getInt() != width)
+                throw new IOException(checkpoint + " is not a checkpoint of keys of " + width + " bytes");
+            long nextLog = buffer.getLong();
+            long count = buffer.getLong();
+            if (body != HEADER + 2 * Long.BYTES + count * width)
+                throw new IOException(checkpoint + " is truncated");
+
+            try {
+                tree.bulkLoad(new Iterator<T>() {
+                    private long read = 0;
+
+                    public boolean hasNext() {
+                        return read < count;
+                    }
+
+                    public T next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        try {
+                            if (!fill(channel, buffer, position, body, width, checksum))
+                                throw new IOException(checkpoint + " is truncated");
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        T key = codec.read(buffer, buffer.position());
+                        buffer.position(buffer.position() + width);
+                        read++;
+                        return key;
+                    }
+                }, CHECKPOINT_FILL_FACTOR);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            ByteBuffer stored = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(stored, body);
+            if (stored.getInt(0) != (int) checksum.getValue()) {
+                tree.clear();
+                throw new IOException(checkpoint + " is corrupt");
+            }
+            return nextLog;
+        }
+    }
+
+    /**
+     * Make at least needed bytes available in buffer, reading on from
+     * position but not past limit and summing everything read into checksum
+     * unless it is null.
+     *
+     * @return False if the file ends first.
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, long[] position, long limit, int needed, CRC32 checksum) throws IOException {
+        if (buffer.remaining() >= needed)
+            return true;
+        buffer.compact();
+        while (buffer.position() < needed && position[0] < limit) {
+            int start = buffer.position();
+            buffer.limit((int) Math.min(buffer.capacity(), start + limit - position[0]));
+            int read = channel.read(buffer, position[0]);
+            if (read < 0)
+                break;
+            if (checksum != null)
+                checksum.update(buffer.array(), start, read);
+            position[0] += read;
+        }
+        buffer.flip();
+        return buffer.remaining() >= needed;
+    }
+
+    private void replay(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < HEADER) {
+                // crashed while creating the log, openLog writes the header again
+                channel.truncate(0);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(IO_BUFFER_SIZE, recordSize));
+            buffer.limit(0);
+            long[] position = { 0 };
+            if (!fill(channel, buffer, position, size, HEADER, null)
+                    || buffer.getLong() != LOG_MAGIC || buffer.getInt() != codec.width())
+                throw new IOException(path + " is not a log of keys of " + codec.width() + " bytes");
+
+            long good = HEADER;
+            while (fill(channel, buffer, position, size, recordSize, null)) {
+                int start = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), start, 1 + codec.width());
+                if (buffer.getInt(start + 1 + codec.width()) != (int) crc.getValue())
+                    break;
+                byte op = buffer.get(start);
+                T value = codec.read(buffer, start + 1);
+                buffer.position(start + recordSize);
+                if (op == INSERT)
+                    tree.insert(value);
+                else if (op == DELETE)
+                    tree.delete(value);
+                else if (op == REMOVE)
+                    tree.remove(value);
+                else
+                    break;
+                good += recordSize;
+                recordsSinceCheckpoint++;
+            }
+            if (good < size) {
+                channel.truncate(good);
+                channel.force(true);
+            }
+        }
+    }
+
+    private void openLog(long number, boolean create) throws IOException {
+        Path path = logPath(number);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putLong(LOG_MAGIC).putInt(codec.width());
+            writeFully(channel, header, null);
+            channel.force(true);
+            if (create)
+                syncDirectory();
+        }
+        channel.position(channel.size());
+        if (log != null)
+            log.close();
+        log = channel;
+        logNumber = number;
+    }
+
+    private Path logPath(long number) {
+        return directory.resolve(LOG_PREFIX + number + LOG_SUFFIX);
+    }
+
+    // Write out what was put into buffer, summing it, and clear it
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, CRC32 checksum) throws IOException {
+        buffer.flip();
+        if (checksum != null)
+            checksum.update(buffer.array(), 0, buffer.limit());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    // Make created, renamed and deleted files durable; not every platform can
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on Windows, renames are durable there
+        }
+    }
+}
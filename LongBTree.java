@@ -0,0 +1,438 @@
+import java.util.Arrays;
+
+/**
+ * B-Tree of primitive long keys. Mirrors the insert/delete/contains/size
+ * API of BTree but keeps the keys of each node in a long[] so no key is
+ * ever boxed and comparisons are plain primitive compares.
+ */
+public class LongBTree {
+
+    // Default to 2-3 Tree
+    private int minKeySize = 1;
+    private int minChildrenSize = minKeySize + 1; // 2
+    private int maxKeySize = 2 * (minKeySize + 1) - 1; // 2
+    private int maxChildrenSize = maxKeySize + 1; // 3
+
+    // Nodes with at most this many keys left in the search window are
+    // scanned linearly instead of bisected further
+    private final int linearSearchThreshold;
+
+    private Node root = null;
+    private int size = 0;
+
+    /**
+     * Constructor for B-Tree which defaults to a 2-3 B-Tree.
+     */
+    public LongBTree() {
+        this.linearSearchThreshold = BTree.DEFAULT_LINEAR_SEARCH_THRESHOLD;
+    }
+
+    /**
+     * Constructor for B-Tree of ordered parameter. Order here means minimum
+     * number of keys in a non-root node.
+     *
+     * @param order
+     *            of the B-Tree.
+     */
+    public LongBTree(int order) {
+        this(order, BTree.DEFAULT_LINEAR_SEARCH_THRESHOLD);
+    }
+
+    /**
+     * Constructor for B-Tree of ordered parameter with its own in-node search
+     * threshold.
+     *
+     * @param order
+     *            of the B-Tree.
+     * @param linearSearchThreshold
+     *            number of keys below which a node search stops bisecting
+     *            and scans, zero means a pure binary search.
+     */
+    public LongBTree(int order, int linearSearchThreshold) {
+        if (linearSearchThreshold < 0)
+            throw new IllegalArgumentException("linearSearchThreshold must not be negative");
+        this.linearSearchThreshold = linearSearchThreshold;
+        this.minKeySize = order - 1;
+        this.minChildrenSize = minKeySize + 1;
+        this.maxKeySize = 2 * (minKeySize + 1) - 1;
+        this.maxChildrenSize = maxKeySize + 1;
+    }
+
+    /**
+     * Insert value, splitting full nodes on the way down so the leaf it
+     * lands in always has room.
+     *
+     * @param value
+     *            to insert.
+     * @return True.
+     */
+    public boolean insert(long value) {
+        if (root == null) {
+            root = new Node(maxKeySize, linearSearchThreshold);
+        } else if (root.keysSize == maxKeySize) {
+            Node s = new Node(maxKeySize, linearSearchThreshold);
+            s.insertChildAt(0, root);
+            root = s;
+            splitChild(s, 0);
+        }
+
+        Node x = root;
+        while (!x.isLeaf()) {
+            int i = x.lowerBound(value);
+            if (x.children[i].keysSize == maxKeySize) {
+                splitChild(x, i);
+                if (value > x.keys[i])
+                    i++;
+            }
+            x = x.children[i];
+        }
+        x.insertKeyAt(x.upperBound(value), value);
+        size++;
+        return true;
+    }
+
+    private void splitChild(Node x, int i) {
+        Node y = x.children[i];
+        Node z = new Node(maxKeySize, linearSearchThreshold);
+
+        // move the upper half of y's keys and children to z in one block each
+        z.appendKeys(y, minKeySize + 1, y.keysSize);
+        if (!y.isLeaf())
+            z.appendChildren(y, minKeySize + 1, y.childrenSize);
+
+        //z takes the slot right after y, the median goes up between them
+        x.insertChildAt(i + 1, z);
+        x.insertKeyAt(i, y.keys[minKeySize]);
+        y.keysSize = minKeySize;
+        y.truncateChildren(y.isLeaf() ? 0 : minKeySize + 1);
+    }
+
+    /**
+     * Delete one occurrence of value. Every node entered on the way down is
+     * first topped up to more than minKeySize keys (by a shift from a
+     * sibling or a merge), so the removal never has to walk back up.
+     *
+     * @param value
+     *            to delete.
+     * @return True if value was found and deleted.
+     */
+    public boolean delete(long value) {
+        if (root == null)
+            return false;
+
+        boolean deleted = false;
+        Node x = root;
+        while (true) {
+            int i = x.lowerBound(value);
+            if (i < x.keysSize && x.keys[i] == value) {
+                if (x.isLeaf()) {
+                    x.removeKeyAt(i);
+                    deleted = true;
+                    break;
+                }
+                Node left = x.children[i];
+                Node right = x.children[i + 1];
+                if (left.keysSize > minKeySize) {
+                    // replace with the predecessor and delete that instead
+                    long predecessor = getGreatestNode(left).lastKey();
+                    x.keys[i] = predecessor;
+                    value = predecessor;
+                    x = left;
+                } else if (right.keysSize > minKeySize) {
+                    long successor = getSmallestNode(right).keys[0];
+                    x.keys[i] = successor;
+                    value = successor;
+                    x = right;
+                } else {
+                    x = mergeChildren(x, i);
+                }
+                continue;
+            }
+            if (x.isLeaf())
+                break;
+            x = fixChildSize(x, i);
+        }
+
+        if (root.keysSize == 0)
+            root = root.isLeaf() ? null : root.children[0];
+        if (deleted)
+            size--;
+        return deleted;
+    }
+
+    // Make sure parent's i-th child has more than minKeySize keys and return it
+    private Node fixChildSize(Node parent, int i) {
+        Node child = parent.children[i];
+        if (child.keysSize > minKeySize)
+            return child;
+        if (i > 0 && parent.children[i - 1].keysSize > minKeySize) {
+            shiftFromLeft(parent, i - 1);
+            return child;
+        }
+        if (i < parent.keysSize && parent.children[i + 1].keysSize > minKeySize) {
+            shiftFromRight(parent, i);
+            return child;
+        }
+        if (i < parent.keysSize)
+            return mergeChildren(parent, i);
+        return mergeChildren(parent, i - 1);
+    }
+
+    private void shiftFromLeft(Node parent, int leftIndex) {
+        Node left = parent.children[leftIndex];
+        Node right = parent.children[leftIndex + 1];
+        right.insertKeyAt(0, parent.keys[leftIndex]);
+        parent.keys[leftIndex] = left.lastKey();
+        left.removeKeyAt(left.keysSize - 1);
+        if (!left.isLeaf())
+            right.insertChildAt(0, left.removeChildAt(left.childrenSize - 1));
+    }
+
+    private void shiftFromRight(Node parent, int leftIndex) {
+        Node left = parent.children[leftIndex];
+        Node right = parent.children[leftIndex + 1];
+        left.insertKeyAt(left.keysSize, parent.keys[leftIndex]);
+        parent.keys[leftIndex] = right.keys[0];
+        right.removeKeyAt(0);
+        if (!right.isLeaf())
+            left.insertChildAt(left.childrenSize, right.removeChildAt(0));
+    }
+
+    // Pull parent's key at leftIndex down between its two children and merge them
+    private Node mergeChildren(Node parent, int leftIndex) {
+        Node left = parent.children[leftIndex];
+        Node right = parent.children[leftIndex + 1];
+        left.insertKeyAt(left.keysSize, parent.keys[leftIndex]);
+        left.appendKeys(right, 0, right.keysSize);
+        left.appendChildren(right, 0, right.childrenSize);
+        parent.removeKeyAt(leftIndex);
+        parent.removeChildAt(leftIndex + 1);
+        return left;
+    }
+
+    private Node getGreatestNode(Node nodeToGet) {
+        Node node = nodeToGet;
+        while (!node.isLeaf())
+            node = node.children[node.childrenSize - 1];
+        return node;
+    }
+
+    private Node getSmallestNode(Node nodeToGet) {
+        Node node = nodeToGet;
+        while (!node.isLeaf())
+            node = node.children[0];
+        return node;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    public boolean contains(long value) {
+        Node node = root;
+        while (node != null) {
+            int index = node.lowerBound(value);
+            if (index < node.keysSize && node.keys[index] == value)
+                return true;
+            node = node.isLeaf() ? null : node.children[index];
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Validate the tree according to the B-Tree invariants.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        if (root == null) return true;
+        return validateNode(root, true);
+    }
+
+    private boolean validateNode(Node node, boolean isRoot) {
+        int keySize = node.keysSize;
+        for (int i = 1; i < keySize; i++) {
+            if (node.keys[i - 1] > node.keys[i])
+                return false;
+        }
+        int childrenSize = node.childrenSize;
+        if (keySize > maxKeySize)
+            return false;
+        if (!isRoot && keySize < minKeySize)
+            return false;
+        if (childrenSize == 0)
+            return true;
+        if (keySize != childrenSize - 1)
+            return false;
+        if (!isRoot && childrenSize < minChildrenSize)
+            return false;
+        if (childrenSize > maxChildrenSize)
+            return false;
+
+        for (int i = 0; i < childrenSize; i++) {
+            Node c = node.children[i];
+            // every child must sit between the keys on either side of it
+            if (i > 0 && c.keys[0] < node.keys[i - 1])
+                return false;
+            if (i < keySize && c.lastKey() > node.keys[i])
+                return false;
+            if (!validateNode(c, false))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (root == null) return "Tree has no nodes.";
+        return getString(root, "", true);
+    }
+
+    private static String getString(Node node, String prefix, boolean isTail) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(prefix).append((isTail ? "└── " : "├── "));
+        for (int i = 0; i < node.keysSize; i++) {
+            builder.append(node.keys[i]);
+            if (i < node.keysSize - 1)
+                builder.append(", ");
+        }
+        builder.append("\n");
+
+        for (int i = 0; i < node.childrenSize; i++) {
+            boolean last = i == node.childrenSize - 1;
+            builder.append(getString(node.children[i], prefix + (isTail ? "    " : "│   "), last));
+        }
+
+        return builder.toString();
+    }
+
+    private static class Node {
+
+        private final long[] keys;
+        private int keysSize = 0;
+        // allocated once the node gets its first child
+        private Node[] children = null;
+        private int childrenSize = 0;
+
+        // the tree's, kept here as the searches run on the node alone
+        private final int linearSearchThreshold;
+
+        private Node(int maxKeySize, int linearSearchThreshold) {
+            this.linearSearchThreshold = linearSearchThreshold;
+            this.keys = new long[maxKeySize];
+        }
+
+        private boolean isLeaf() {
+            return childrenSize == 0;
+        }
+
+        private long lastKey() {
+            return keys[keysSize - 1];
+        }
+
+        /**
+         * Index of the first key greater than or equal to value. The final
+         * window is counted with a loop that has no data dependent branch,
+         * which the JIT can vectorize.
+         */
+        private int lowerBound(long value) {
+            int low = 0;
+            int high = keysSize;
+            while (high - low > linearSearchThreshold) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < value)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            int smaller = 0;
+            for (int i = low; i < high; i++) {
+                smaller += keys[i] < value ? 1 : 0;
+            }
+            return low + smaller;
+        }
+
+        /**
+         * Index of the first key strictly greater than value.
+         */
+        private int upperBound(long value) {
+            int low = 0;
+            int high = keysSize;
+            while (high - low > linearSearchThreshold) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] <= value)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            int notGreater = 0;
+            for (int i = low; i < high; i++) {
+                notGreater += keys[i] <= value ? 1 : 0;
+            }
+            return low + notGreater;
+        }
+
+        private void insertKeyAt(int index, long value) {
+            System.arraycopy(keys, index, keys, index + 1, keysSize - index);
+            keys[index] = value;
+            keysSize++;
+        }
+
+        private void removeKeyAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, keysSize - index - 1);
+            keysSize--;
+        }
+
+        private void appendKeys(Node source, int from, int to) {
+            System.arraycopy(source.keys, from, keys, keysSize, to - from);
+            keysSize += to - from;
+        }
+
+        private void insertChildAt(int index, Node child) {
+            ensureChildren();
+            System.arraycopy(children, index, children, index + 1, childrenSize - index);
+            children[index] = child;
+            childrenSize++;
+        }
+
+        private Node removeChildAt(int index) {
+            Node child = children[index];
+            System.arraycopy(children, index + 1, children, index, childrenSize - index - 1);
+            childrenSize--;
+            children[childrenSize] = null;
+            return child;
+        }
+
+        private void appendChildren(Node source, int from, int to) {
+            if (to == from)
+                return;
+            ensureChildren();
+            System.arraycopy(source.children, from, children, childrenSize, to - from);
+            childrenSize += to - from;
+        }
+
+        private void truncateChildren(int childCount) {
+            if (children != null)
+                Arrays.fill(children, childCount, childrenSize, null);
+            childrenSize = childCount;
+        }
+
+        private void ensureChildren() {
+            // a node has at most one child more than it can hold keys
+            if (children == null)
+                children = new Node[keys.length + 1];
+        }
+
+        @Override
+        public String toString() {
+            return "keys=" + Arrays.toString(Arrays.copyOf(keys, keysSize))
+                 + " keySize=" + keysSize + " children=" + childrenSize;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.Arrays;
+
+/**
+ * Node of BTreeMap and BPlusTreeMap: keys, the values next to them and the
+ * children in arrays sized for the fullest node. Splits, shifts and merges
+ * of a node's children work as in a B-Tree, moving entries through the
+ * node; BPlusTreeMap overrides them where its children are leaves.
+ *
+ * @param <N>
+ *            the map's own node type, which its children have.
+ */
+@SuppressWarnings("unchecked")
+abstract class MapNode<K extends Comparable<K>, V, N extends MapNode<K, V, N>> {
+
+    final K[] keys;
+    // null for nodes that hold no values
+    final V[] values;
+    int keysSize = 0;
+    // allocated once the node gets its first child
+    N[] children = null;
+    int childrenSize = 0;
+
+    MapNode(int maxKeySize, boolean hasValues) {
+        this.keys = (K[]) new Comparable[maxKeySize];
+        this.values = hasValues ? (V[]) new Object[maxKeySize] : null;
+    }
+
+    // children arrays must have N's own runtime type, the maps index them directly
+    abstract N[] newChildren(int length);
+
+    boolean isLeaf() {
+        return childrenSize == 0;
+    }
+
+    N getChild(int index) {
+        if (index >= childrenSize)
+            return null;
+        return children[index];
+    }
+
+    V valueAt(int index) {
+        return values == null ? null : values[index];
+    }
+
+    void setEntry(int index, K key, V value) {
+        keys[index] = key;
+        if (values != null)
+            values[index] = value;
+    }
+
+    /**
+     * Index of the first key greater than or equal to key, or keysSize if
+     * every key is smaller.
+     */
+    int lowerBound(K key) {
+        int low = 0;
+        int high = keysSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Index of the first key strictly greater than key.
+     */
+    int upperBound(K key) {
+        int low = 0;
+        int high = keysSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    void insertAt(int index, K key, V value) {
+        System.arraycopy(keys, index, keys, index + 1, keysSize - index);
+        keys[index] = key;
+        if (values != null) {
+            System.arraycopy(values, index, values, index + 1, keysSize - index);
+            values[index] = value;
+        }
+        keysSize++;
+    }
+
+    void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, keysSize - index - 1);
+        if (values != null)
+            System.arraycopy(values, index + 1, values, index, keysSize - index - 1);
+        keysSize--;
+        keys[keysSize] = null;
+        if (values != null)
+            values[keysSize] = null;
+    }
+
+    void appendEntries(N source, int from, int to) {
+        System.arraycopy(source.keys, from, keys, keysSize, to - from);
+        if (values != null)
+            System.arraycopy(source.values, from, values, keysSize, to - from);
+        keysSize += to - from;
+    }
+
+    void truncate(int keyCount, int childCount) {
+        Arrays.fill(keys, keyCount, keysSize, null);
+        if (values != null)
+            Arrays.fill(values, keyCount, keysSize, null);
+        keysSize = keyCount;
+        if (children != null)
+            Arrays.fill(children, childCount, childrenSize, null);
+        childrenSize = childCount;
+    }
+
+    void insertChildAt(int index, N child) {
+        ensureChildren();
+        System.arraycopy(children, index, children, index + 1, childrenSize - index);
+        children[index] = child;
+        childrenSize++;
+    }
+
+    N removeChildAt(int index) {
+        N child = children[index];
+        System.arraycopy(children, index + 1, children, index, childrenSize - index - 1);
+        childrenSize--;
+        children[childrenSize] = null;
+        return child;
+    }
+
+    void appendChildren(N source, int from, int to) {
+        if (to == from)
+            return;
+        ensureChildren();
+        System.arraycopy(source.children, from, children, childrenSize, to - from);
+        childrenSize += to - from;
+    }
+
+    /**
+     * Split the full child at index i: its entries and children above median
+     * move to sibling, which becomes child i + 1, and the entry at median
+     * moves up into this node between them.
+     */
+    void splitChild(int i, int median, N sibling) {
+        N child = children[i];
+        sibling.appendEntries(child, median + 1, child.keysSize);
+        if (!child.isLeaf())
+            sibling.appendChildren(child, median + 1, child.childrenSize);
+
+        //sibling takes the slot right after child, the median goes up between them
+        insertChildAt(i + 1, sibling);
+        insertAt(i, child.keys[median], child.valueAt(median));
+        child.truncate(median, child.isLeaf() ? 0 : median + 1);
+    }
+
+    // Make sure the i-th child has more than minKeySize keys and return the node that now covers its range
+    N fixChildSize(int i, int minKeySize) {
+        N child = children[i];
+        if (child.keysSize > minKeySize)
+            return child;
+        if (i > 0 && children[i - 1].keysSize > minKeySize) {
+            shiftFromLeft(i - 1);
+            return child;
+        }
+        if (i < keysSize && children[i + 1].keysSize > minKeySize) {
+            shiftFromRight(i);
+            return child;
+        }
+        if (i < keysSize)
+            return mergeChildren(i);
+        return mergeChildren(i - 1);
+    }
+
+    void shiftFromLeft(int leftIndex) {
+        N left = children[leftIndex];
+        N right = children[leftIndex + 1];
+        int last = left.keysSize - 1;
+        right.insertAt(0, keys[leftIndex], valueAt(leftIndex));
+        setEntry(leftIndex, left.keys[last], left.valueAt(last));
+        left.removeAt(last);
+        if (!left.isLeaf())
+            right.insertChildAt(0, left.removeChildAt(left.childrenSize - 1));
+    }
+
+    void shiftFromRight(int leftIndex) {
+        N left = children[leftIndex];
+        N right = children[leftIndex + 1];
+        left.insertAt(left.keysSize, keys[leftIndex], valueAt(leftIndex));
+        setEntry(leftIndex, right.keys[0], right.valueAt(0));
+        right.removeAt(0);
+        if (!right.isLeaf())
+            left.insertChildAt(left.childrenSize, right.removeChildAt(0));
+    }
+
+    // Pull the entry at leftIndex down between its two children and merge them
+    N mergeChildren(int leftIndex) {
+        N left = children[leftIndex];
+        N right = children[leftIndex + 1];
+        left.insertAt(left.keysSize, keys[leftIndex], valueAt(leftIndex));
+        left.appendEntries(right, 0, right.keysSize);
+        left.appendChildren(right, 0, right.childrenSize);
+        removeAt(leftIndex);
+        removeChildAt(leftIndex + 1);
+        return left;
+    }
+
+    private void ensureChildren() {
+        // a node has at most one child more than it can hold keys
+        if (children == null)
+            children = newChildren(keys.length + 1);
+    }
+}
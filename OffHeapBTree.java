@@ -0,0 +1,106 @@
+/**
+ * B-Tree of fixed-width keys whose nodes live outside the Java heap. Nodes
+ * are fixed-size slots in direct buffers allocated in large chunks, keys are
+ * stored in place by a {@link PagedBTree.KeyCodec} and children are slot
+ * numbers, so however many keys the tree holds the heap only sees a handful
+ * of chunk objects and the garbage collector has nothing to trace.
+ *
+ * The slots are the pages of a {@link PagedBTree} kept in direct memory
+ * rather than a file, laid out and split, merged and searched exactly like
+ * the pages of a file. Slots freed by merges are kept on a free list threaded
+ * through the slots and reused; the chunks are only given back to the OS by
+ * clear().
+ */
+public class OffHeapBTree<T extends Comparable<T>> {
+
+    private final int order;
+    private final PagedBTree.KeyCodec<T> codec;
+
+    private PagedBTree<T> tree;
+
+    /**
+     * Constructor for B-Tree which defaults to a 2-3 B-Tree.
+     *
+     * @param codec
+     *            to store keys with.
+     */
+    public OffHeapBTree(PagedBTree.KeyCodec<T> codec) {
+        this(2, codec);
+    }
+
+    /**
+     * Constructor for B-Tree of ordered parameter. Order here means minimum
+     * number of keys in a non-root node.
+     *
+     * @param order
+     *            of the B-Tree.
+     * @param codec
+     *            to store keys with.
+     */
+    public OffHeapBTree(int order, PagedBTree.KeyCodec<T> codec) {
+        this.order = order;
+        this.codec = codec;
+        this.tree = new PagedBTree<T>(order, codec);
+    }
+
+    /**
+     * Insert value, splitting full nodes on the way down so the leaf it
+     * lands in always has room.
+     *
+     * @param value
+     *            to insert.
+     * @return True.
+     */
+    public boolean insert(T value) {
+        return tree.insert(value);
+    }
+
+    /**
+     * Delete one occurrence of value. Every node entered on the way down is
+     * first topped up to more than minKeySize keys.
+     *
+     * @param value
+     *            to delete.
+     * @return the deleted key, or null if value was not in the tree.
+     */
+    public T delete(T value) {
+        return tree.remove(value);
+    }
+
+    /**
+     * Drop every key and release the off-heap memory once the chunks are
+     * collected.
+     */
+    public void clear() {
+        tree = new PagedBTree<T>(order, codec);
+    }
+
+    public boolean contains(T value) {
+        return tree.contains(value);
+    }
+
+    public int size() {
+        return (int) tree.size();
+    }
+
+    /**
+     * Bytes of direct memory held by the tree's chunks.
+     */
+    public long offHeapBytes() {
+        return tree.offHeapBytes();
+    }
+
+    /**
+     * Validate the tree according to the B-Tree invariants.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        return tree.validate();
+    }
+
+    @Override
+    public String toString() {
+        return tree.toString();
+    }
+}
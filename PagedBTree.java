@@ -0,0 +1,1166 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * Disk-backed B-Tree whose nodes are fixed-size pages of a file. Pages are
+ * accessed through memory-mapped segments of the file, so the OS page cache
+ * decides which nodes stay in memory and the tree can be far larger than the
+ * heap. Children are referenced by page id and keys are stored in place by a
+ * fixed-width {@link KeyCodec}.
+ *
+ * The order is derived from the page size: as many keys as fit in a page,
+ * rounded down to the 2 * order - 1 a B-Tree of that order can hold.
+ *
+ * Alternatively the pages can be kept in a {@link PageCache} of a fixed
+ * number of frames on the heap with a pluggable {@link EvictionPolicy}, which
+ * bounds the memory the tree uses regardless of what the OS does.
+ *
+ * OffHeapBTree uses the same pages without a file: they are slots in direct
+ * buffers allocated as the tree grows, and there is no metadata page.
+ *
+ * Page 0 holds the tree's metadata. A node page starts with its key count and
+ * a leaf flag, followed by the keys and then the child page ids:
+ *
+ * <pre>
+ * | keysSize (4) | leaf (1) | pad (3) | key 0 .. key max-1 | child 0 .. child max (8 each) |
+ * </pre>
+ *
+ * Insert and delete work top-down like LongBTree, splitting full pages and
+ * topping up minimal ones on the way down, so no page is ever revisited.
+ * Pages freed by merges are kept on a free list inside the file and reused.
+ */
+public class PagedBTree<T extends Comparable<T>> implements Closeable {
+
+    /**
+     * Stores keys of type T in a fixed number of bytes.
+     */
+    public interface KeyCodec<T extends Comparable<T>> {
+
+        /** Number of bytes every key takes. */
+        int width();
+
+        void write(ByteBuffer buffer, int offset, T key);
+
+        T read(ByteBuffer buffer, int offset);
+
+        /**
+         * Compare the key stored at offset with key. Codecs for which this can
+         * be done without decoding should override it.
+         */
+        default int compare(ByteBuffer buffer, int offset, T key) {
+            return read(buffer, offset).compareTo(key);
+        }
+
+        KeyCodec<Long> LONG = new KeyCodec<Long>() {
+            public int width() { return Long.BYTES; }
+            public void write(ByteBuffer buffer, int offset, Long key) { buffer.putLong(offset, key); }
+            public Long read(ByteBuffer buffer, int offset) { return buffer.getLong(offset); }
+            public int compare(ByteBuffer buffer, int offset, Long key) {
+                return Long.compare(buffer.getLong(offset), key);
+            }
+        };
+
+        KeyCodec<Integer> INTEGER = new KeyCodec<Integer>() {
+            public int width() { return Integer.BYTES; }
+            public void write(ByteBuffer buffer, int offset, Integer key) { buffer.putInt(offset, key); }
+            public Integer read(ByteBuffer buffer, int offset) { return buffer.getInt(offset); }
+            public int compare(ByteBuffer buffer, int offset, Integer key) {
+                return Integer.compare(buffer.getInt(offset), key);
+            }
+        };
+    }
+
+    /**
+     * Decides which resident page a {@link PageCache} gives up when it needs
+     * room for another one.
+     */
+    public interface EvictionPolicy {
+
+        /** page has just been read into the cache. */
+        void admit(long page);
+
+        /** resident page has been touched again. */
+        void access(long page);
+
+        /**
+         * Pick a resident page for which evictable holds, forget it and
+         * return it.
+         *
+         * @return the victim, or -1 if no resident page is evictable.
+         */
+        long evict(LongPredicate evictable);
+
+        /**
+         * Evict the least recently used page.
+         */
+        static EvictionPolicy lru() {
+            return new EvictionPolicy() {
+                // iteration order is least recently used first
+                private final LinkedHashSet<Long> pages = new LinkedHashSet<Long>();
+
+                public void admit(long page) {
+                    pages.add(page);
+                }
+
+                public void access(long page) {
+                    pages.remove(page);
+                    pages.add(page);
+                }
+
+                public long evict(LongPredicate evictable) {
+                    return evictOldest(pages, evictable);
+                }
+            };
+        }
+
+        /**
+         * Approximate LRU with a clock hand sweeping a ring of slots, each with
+         * a reference bit set on access and cleared as the hand passes.
+         * Accesses only set a bit, so hits are cheaper than with lru().
+         *
+         * @param capacity
+         *            of the cache the policy is used by.
+         */
+        static EvictionPolicy clock(int capacity) {
+            return new EvictionPolicy() {
+                private final long[] pages = new long[capacity];
+                private final boolean[] referenced = new boolean[capacity];
+                private final boolean[] used = new boolean[capacity];
+                private final Map<Long, Integer> slots = new HashMap<Long, Integer>();
+                private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+                private int hand = 0;
+
+                {
+                    for (int i = 0; i < capacity; i++)
+                        free.add(i);
+                }
+
+                public void admit(long page) {
+                    int slot = free.remove();
+                    pages[slot] = page;
+                    used[slot] = true;
+                    referenced[slot] = true;
+                    slots.put(page, slot);
+                }
+
+                public void access(long page) {
+                    referenced[slots.get(page)] = true;
+                }
+
+                public long evict(LongPredicate evictable) {
+                    // two full turns clear every reference bit on the way
+                    for (int step = 0; step < 2 * capacity; step++) {
+                        int slot = hand;
+                        hand = (hand + 1) % capacity;
+                        if (!used[slot] || !evictable.test(pages[slot]))
+                            continue;
+                        if (referenced[slot]) {
+                            referenced[slot] = false;
+                            continue;
+                        }
+                        used[slot] = false;
+                        slots.remove(pages[slot]);
+                        free.add(slot);
+                        return pages[slot];
+                    }
+                    return NONE;
+                }
+            };
+        }
+
+        /**
+         * 2Q: pages enter a FIFO queue and are only promoted to the LRU queue
+         * when they are read again after having been evicted from it, which
+         * keeps one-off scans from flushing the hot upper levels of the tree.
+         *
+         * @param capacity
+         *            of the cache the policy is used by.
+         */
+        static EvictionPolicy twoQueue(int capacity) {
+            return new EvictionPolicy() {
+                // sizes suggested by Johnson and Shasha
+                private final int maxIn = Math.max(1, capacity / 4);
+                private final int maxOut = Math.max(1, capacity / 2);
+                private final LinkedHashSet<Long> in = new LinkedHashSet<Long>();
+                private final LinkedHashSet<Long> hot = new LinkedHashSet<Long>();
+                // ids of pages recently evicted from in, without their data
+                private final LinkedHashSet<Long> out = new LinkedHashSet<Long>();
+
+                public void admit(long page) {
+                    if (out.remove(page))
+                        hot.add(page);
+                    else
+                        in.add(page);
+                }
+
+                public void access(long page) {
+                    if (hot.remove(page))
+                        hot.add(page);
+                }
+
+                public long evict(LongPredicate evictable) {
+                    long victim = NONE;
+                    if (in.size() > maxIn || hot.isEmpty())
+                        victim = evictIn(evictable);
+                    if (victim == NONE)
+                        victim = evictOldest(hot, evictable);
+                    if (victim == NONE)
+                        victim = evictIn(evictable);
+                    return victim;
+                }
+
+                // Pages leaving in are remembered in out
+                private long evictIn(LongPredicate evictable) {
+                    long victim = evictOldest(in, evictable);
+                    if (victim != NONE) {
+                        out.add(victim);
+                        if (out.size() > maxOut)
+                            out.remove(out.iterator().next());
+                    }
+                    return victim;
+                }
+            };
+        }
+
+        // Remove and return the first evictable page of queue
+        static long evictOldest(LinkedHashSet<Long> queue, LongPredicate evictable) {
+            for (Iterator<Long> iterator = queue.iterator(); iterator.hasNext();) {
+                long page = iterator.next();
+                if (evictable.test(page)) {
+                    iterator.remove();
+                    return page;
+                }
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Fixed number of page frames on the heap holding the resident pages of
+     * one tree, as an alternative to mapping the whole file. Pages are read
+     * into a frame on first use, modified in place and written back when they
+     * are evicted or the tree is flushed. Pages on the current descent are
+     * pinned and never evicted.
+     */
+    public static final class PageCache {
+
+        // the two pinned pages of a descent plus what a split or merge touches
+        private static final int MIN_CAPACITY = 4;
+
+        private final int capacity;
+        private final EvictionPolicy policy;
+        private final Map<Long, Frame> frames = new HashMap<Long, Frame>();
+        // buffers of evicted frames, reused for the next page read
+        private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<ByteBuffer>();
+
+        private FileChannel channel;
+        private int pageSize;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long writeBacks;
+
+        /**
+         * Cache of capacity pages evicting the least recently used one.
+         *
+         * @param capacity
+         *            number of pages held in memory.
+         */
+        public PageCache(int capacity) {
+            this(capacity, EvictionPolicy.lru());
+        }
+
+        /**
+         * @param capacity
+         *            number of pages held in memory.
+         * @param policy
+         *            choosing the page to evict, not shared with other caches.
+         */
+        public PageCache(int capacity, EvictionPolicy policy) {
+            if (capacity < MIN_CAPACITY)
+                throw new IllegalArgumentException("capacity " + capacity + " is below " + MIN_CAPACITY + " pages");
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+
+        /** Number of pages currently held. */
+        public int resident() {
+            return frames.size();
+        }
+
+        /** Page reads served from memory. */
+        public long hits() {
+            return hits;
+        }
+
+        /** Page reads that had to go to the file. */
+        public long misses() {
+            return misses;
+        }
+
+        public long evictions() {
+            return evictions;
+        }
+
+        /** Modified pages written to the file, on eviction or flush. */
+        public long writeBacks() {
+            return writeBacks;
+        }
+
+        @Override
+        public String toString() {
+            return "resident=" + frames.size() + "/" + capacity + " hits=" + hits + " misses=" + misses
+                 + " evictions=" + evictions + " writeBacks=" + writeBacks;
+        }
+
+        private Pages attach(FileChannel channel, int pageSize) {
+            if (this.channel != null)
+                throw new IllegalStateException("cache is already used by another tree");
+            this.channel = channel;
+            this.pageSize = pageSize;
+            return new Pages() {
+                public ByteBuffer read(long page) {
+                    return frame(page).buffer;
+                }
+
+                public ByteBuffer write(long page) {
+                    Frame frame = frame(page);
+                    frame.dirty = true;
+                    return frame.buffer;
+                }
+
+                public int offset(long page) {
+                    return 0;
+                }
+
+                public void pin(long page) {
+                    frame(page).pins++;
+                }
+
+                public void unpin(long page) {
+                    frames.get(page).pins--;
+                }
+
+                public void flush() throws IOException {
+                    for (Frame frame : frames.values()) {
+                        if (frame.dirty)
+                            writeBack(frame);
+                    }
+                    PageCache.this.channel.force(false);
+                }
+
+                public void close() {
+                    frames.clear();
+                    spare.clear();
+                    PageCache.this.channel = null;
+                }
+            };
+        }
+
+        private Frame frame(long page) {
+            Frame frame = frames.get(page);
+            if (frame != null) {
+                hits++;
+                policy.access(page);
+                return frame;
+            }
+            misses++;
+            if (frames.size() >= capacity)
+                evict();
+            frame = new Frame(page, spare.isEmpty() ? ByteBuffer.allocate(pageSize) : spare.pop());
+            try {
+                load(frame);
+            } catch (IOException e) {
+                throw new IllegalStateException("could not read page " + page, e);
+            }
+            frames.put(page, frame);
+            policy.admit(page);
+            return frame;
+        }
+
+        private void evict() {
+            long victim = policy.evict(page -> frames.get(page).pins == 0);
+            if (victim == NONE)
+                throw new IllegalStateException("all " + capacity + " cached pages are pinned");
+            Frame frame = frames.remove(victim);
+            if (frame.dirty) {
+                try {
+                    writeBack(frame);
+                } catch (IOException e) {
+                    throw new IllegalStateException("could not write page " + victim, e);
+                }
+            }
+            evictions++;
+            spare.push(frame.buffer);
+        }
+
+        // Pages past the end of the file have never been written and read as zeros
+        private void load(Frame frame) throws IOException {
+            ByteBuffer buffer = frame.buffer.duplicate();
+            buffer.clear();
+            long position = frame.page * pageSize;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    break;
+            }
+            while (buffer.hasRemaining())
+                buffer.put((byte) 0);
+        }
+
+        private void writeBack(Frame frame) throws IOException {
+            ByteBuffer buffer = frame.buffer.duplicate();
+            buffer.clear();
+            long position = frame.page * pageSize;
+            while (buffer.hasRemaining())
+                channel.write(buffer, position + buffer.position());
+            frame.dirty = false;
+            writeBacks++;
+        }
+
+        private static final class Frame {
+
+            private final long page;
+            private final ByteBuffer buffer;
+            private int pins = 0;
+            private boolean dirty = false;
+
+            private Frame(long page, ByteBuffer buffer) {
+                this.page = page;
+                this.buffer = buffer;
+            }
+        }
+    }
+
+    private static final long MAGIC = 0x4254726565506731L; // "BTreePg1"
+    private static final long NONE = -1;
+
+    // metadata page layout
+    private static final int META_MAGIC = 0;
+    private static final int META_PAGE_SIZE = 8;
+    private static final int META_KEY_WIDTH = 12;
+    private static final int META_ROOT = 16;
+    private static final int META_SIZE = 24;
+    private static final int META_PAGE_COUNT = 32;
+    private static final int META_FREE_HEAD = 40;
+
+    // node page layout
+    private static final int KEYS_SIZE = 0;
+    private static final int LEAF = 4;
+    private static final int HEADER = 8;
+
+    // null for trees kept in an arena
+    private final FileChannel channel;
+    private final KeyCodec<T> codec;
+    private final int pageSize;
+    private final int keyWidth;
+    private final int childrenOffset;
+    private final Pages pages;
+    // the pages themselves if they are kept in direct memory, else null
+    private final ArenaPages arena;
+    // reused for moving byte ranges inside or between pages
+    private final byte[] scratch;
+
+    private final int minKeySize;
+    private final int maxKeySize;
+
+    private long root;
+    private long size;
+    private long pageCount;
+    private long freeHead;
+
+    /**
+     * Open the tree stored in file, creating it if the file is empty.
+     *
+     * @param file
+     *            to store the pages in.
+     * @param pageSize
+     *            in bytes, usually the OS page size or a multiple of it.
+     * @param codec
+     *            to store keys with.
+     * @throws IOException
+     *             if the file cannot be opened or holds a different tree.
+     */
+    public PagedBTree(Path file, int pageSize, KeyCodec<T> codec) throws IOException {
+        this(file, pageSize, codec, null);
+    }
+
+    /**
+     * Open the tree stored in file, creating it if the file is empty, and
+     * keep its pages in a bounded cache instead of mapping the file.
+     *
+     * @param file
+     *            to store the pages in.
+     * @param pageSize
+     *            in bytes, usually the OS page size or a multiple of it.
+     * @param codec
+     *            to store keys with.
+     * @param cache
+     *            to hold the resident pages, or null to map the file.
+     * @throws IOException
+     *             if the file cannot be opened or holds a different tree.
+     */
+    public PagedBTree(Path file, int pageSize, KeyCodec<T> codec, PageCache cache) throws IOException {
+        int order = orderForPageSize(pageSize, codec.width());
+        if (order < 2)
+            throw new IllegalArgumentException("page size " + pageSize + " is too small for keys of " + codec.width() + " bytes");
+        this.codec = codec;
+        this.pageSize = pageSize;
+        this.keyWidth = codec.width();
+        this.minKeySize = order - 1;
+        this.maxKeySize = 2 * order - 1;
+        this.childrenOffset = HEADER + maxKeySize * keyWidth;
+        this.scratch = new byte[pageSize];
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pages = cache == null ? new MappedPages(channel, pageSize) : cache.attach(channel, pageSize);
+        this.arena = null;
+
+        if (channel.size() == 0) {
+            pageCount = 1;
+            freeHead = NONE;
+            root = allocatePage(true);
+            size = 0;
+            writeMeta();
+        } else {
+            ByteBuffer meta = pages.read(0);
+            if (meta.getLong(META_MAGIC) != MAGIC
+                    || meta.getInt(META_PAGE_SIZE) != pageSize
+                    || meta.getInt(META_KEY_WIDTH) != keyWidth) {
+                pages.close();
+                channel.close();
+                throw new IOException(file + " does not hold a tree with this page size and key width");
+            }
+            root = meta.getLong(META_ROOT);
+            size = meta.getLong(META_SIZE);
+            pageCount = meta.getLong(META_PAGE_COUNT);
+            freeHead = meta.getLong(META_FREE_HEAD);
+        }
+    }
+
+    /**
+     * Tree of the given order whose pages are kept in direct memory instead
+     * of a file. Page ids start at 0 as there is no metadata page.
+     *
+     * @param order
+     *            of the B-Tree, see BTree(int order).
+     * @param codec
+     *            to store keys with.
+     */
+    PagedBTree(int order, KeyCodec<T> codec) {
+        if (order < 2)
+            throw new IllegalArgumentException("order must be at least 2");
+        this.codec = codec;
+        this.keyWidth = codec.width();
+        this.minKeySize = order - 1;
+        this.maxKeySize = 2 * order - 1;
+        this.childrenOffset = HEADER + maxKeySize * keyWidth;
+        this.pageSize = childrenOffset + (maxKeySize + 1) * Long.BYTES;
+        this.scratch = new byte[pageSize];
+        this.channel = null;
+        this.arena = new ArenaPages(pageSize);
+        this.pages = arena;
+
+        pageCount = 0;
+        freeHead = NONE;
+        root = allocatePage(true);
+        size = 0;
+    }
+
+    /**
+     * Order of the B-Tree whose nodes fit in a page, see BTree(int order).
+     *
+     * @param pageSize
+     *            in bytes.
+     * @param keyWidth
+     *            bytes per key.
+     * @return largest order whose 2 * order - 1 keys and their children fit.
+     */
+    public static int orderForPageSize(int pageSize, int keyWidth) {
+        // keys and children of a full node plus the one extra child pointer
+        int fit = (pageSize - HEADER - Long.BYTES) / (keyWidth + Long.BYTES);
+        return (fit + 1) / 2;
+    }
+
+    public boolean contains(T value) {
+        long page = root;
+        while (true) {
+            int keys = keysSize(page);
+            int index = lowerBound(page, value);
+            if (index < keys && compareKey(page, index, value) == 0)
+                return true;
+            if (isLeaf(page))
+                return false;
+            page = child(page, index);
+        }
+    }
+
+    /**
+     * Insert value, splitting full pages on the way down.
+     *
+     * @param value
+     *            to insert.
+     * @return True.
+     */
+    public boolean insert(T value) {
+        if (keysSize(root) == maxKeySize) {
+            long s = allocatePage(false);
+            setChild(s, 0, root);
+            root = s;
+            splitChild(s, 0);
+        }
+
+        // the page being worked on stays pinned while its children are touched
+        long x = root;
+        pages.pin(x);
+        while (!isLeaf(x)) {
+            int i = lowerBound(x, value);
+            if (keysSize(child(x, i)) == maxKeySize) {
+                splitChild(x, i);
+                if (compareKey(x, i, value) < 0)
+                    i++;
+            }
+            long next = child(x, i);
+            pages.pin(next);
+            pages.unpin(x);
+            x = next;
+        }
+        int keys = keysSize(x);
+        int i = upperBound(x, value);
+        moveKeys(x, i, x, i + 1, keys - i);
+        codec.write(pages.write(x), pages.offset(x) + keyOffset(i), value);
+        setKeysSize(x, keys + 1);
+        pages.unpin(x);
+        size++;
+        return true;
+    }
+
+    private void splitChild(long x, int i) {
+        long y = child(x, i);
+        long z = allocatePage(isLeaf(y));
+
+        // move the upper half of y's keys and children to z in one block each
+        moveKeys(y, minKeySize + 1, z, 0, minKeySize);
+        if (!isLeaf(y))
+            moveChildren(y, minKeySize + 1, z, 0, minKeySize + 1);
+        setKeysSize(z, minKeySize);
+
+        //z takes the slot right after y, the median goes up between them
+        int keys = keysSize(x);
+        moveKeys(x, i, x, i + 1, keys - i);
+        moveChildren(x, i + 1, x, i + 2, keys - i);
+        moveKeys(y, minKeySize, x, i, 1);
+        setChild(x, i + 1, z);
+        setKeysSize(x, keys + 1);
+        setKeysSize(y, minKeySize);
+    }
+
+    /**
+     * Delete one occurrence of value. Every page entered on the way down is
+     * first topped up to more than minKeySize keys.
+     *
+     * @param value
+     *            to delete.
+     * @return True if value was found and deleted.
+     */
+    public boolean delete(T value) {
+        return remove(value) != null;
+    }
+
+    /**
+     * Like delete, but returns the key as it was stored.
+     *
+     * @param value
+     *            to delete.
+     * @return the deleted key, or null if value was not in the tree.
+     */
+    T remove(T value) {
+        T deleted = null;
+        long x = root;
+        pages.pin(x);
+        while (true) {
+            int i = lowerBound(x, value);
+            if (i < keysSize(x) && compareKey(x, i, value) == 0) {
+                if (deleted == null)
+                    deleted = readKey(x, i);
+                if (isLeaf(x)) {
+                    moveKeys(x, i + 1, x, i, keysSize(x) - i - 1);
+                    setKeysSize(x, keysSize(x) - 1);
+                    break;
+                }
+                long left = child(x, i);
+                long right = child(x, i + 1);
+                if (keysSize(left) > minKeySize) {
+                    // replace with the predecessor and delete that instead
+                    long greatest = left;
+                    while (!isLeaf(greatest))
+                        greatest = child(greatest, keysSize(greatest));
+                    moveKeys(greatest, keysSize(greatest) - 1, x, i, 1);
+                    value = readKey(x, i);
+                    x = moveTo(x, left);
+                } else if (keysSize(right) > minKeySize) {
+                    long smallest = right;
+                    while (!isLeaf(smallest))
+                        smallest = child(smallest, 0);
+                    moveKeys(smallest, 0, x, i, 1);
+                    value = readKey(x, i);
+                    x = moveTo(x, right);
+                } else {
+                    x = moveTo(x, mergeChildren(x, i));
+                }
+                continue;
+            }
+            if (isLeaf(x))
+                break;
+            x = moveTo(x, fixChildSize(x, i));
+        }
+        pages.unpin(x);
+
+        if (keysSize(root) == 0 && !isLeaf(root)) {
+            long old = root;
+            root = child(root, 0);
+            freePage(old);
+        }
+        if (deleted != null)
+            size--;
+        return deleted;
+    }
+
+    // Pin the page the descent continues in and release the one it leaves
+    private long moveTo(long from, long to) {
+        pages.pin(to);
+        pages.unpin(from);
+        return to;
+    }
+
+    // Make sure parent's i-th child has more than minKeySize keys and return it
+    private long fixChildSize(long parent, int i) {
+        long child = child(parent, i);
+        if (keysSize(child) > minKeySize)
+            return child;
+        int parentKeys = keysSize(parent);
+        if (i > 0 && keysSize(child(parent, i - 1)) > minKeySize) {
+            shiftFromLeft(parent, i - 1);
+            return child;
+        }
+        if (i < parentKeys && keysSize(child(parent, i + 1)) > minKeySize) {
+            shiftFromRight(parent, i);
+            return child;
+        }
+        if (i < parentKeys)
+            return mergeChildren(parent, i);
+        return mergeChildren(parent, i - 1);
+    }
+
+    private void shiftFromLeft(long parent, int leftIndex) {
+        long left = child(parent, leftIndex);
+        long right = child(parent, leftIndex + 1);
+        int leftKeys = keysSize(left);
+        int rightKeys = keysSize(right);
+        moveKeys(right, 0, right, 1, rightKeys);
+        moveKeys(parent, leftIndex, right, 0, 1);
+        moveKeys(left, leftKeys - 1, parent, leftIndex, 1);
+        if (!isLeaf(left)) {
+            moveChildren(right, 0, right, 1, rightKeys + 1);
+            setChild(right, 0, child(left, leftKeys));
+        }
+        setKeysSize(left, leftKeys - 1);
+        setKeysSize(right, rightKeys + 1);
+    }
+
+    private void shiftFromRight(long parent, int leftIndex) {
+        long left = child(parent, leftIndex);
+        long right = child(parent, leftIndex + 1);
+        int leftKeys = keysSize(left);
+        int rightKeys = keysSize(right);
+        moveKeys(parent, leftIndex, left, leftKeys, 1);
+        moveKeys(right, 0, parent, leftIndex, 1);
+        moveKeys(right, 1, right, 0, rightKeys - 1);
+        if (!isLeaf(right)) {
+            setChild(left, leftKeys + 1, child(right, 0));
+            moveChildren(right, 1, right, 0, rightKeys);
+        }
+        setKeysSize(left, leftKeys + 1);
+        setKeysSize(right, rightKeys - 1);
+    }
+
+    // Pull parent's key at leftIndex down between its two children and merge them
+    private long mergeChildren(long parent, int leftIndex) {
+        long left = child(parent, leftIndex);
+        long right = child(parent, leftIndex + 1);
+        int leftKeys = keysSize(left);
+        int rightKeys = keysSize(right);
+        int parentKeys = keysSize(parent);
+        moveKeys(parent, leftIndex, left, leftKeys, 1);
+        moveKeys(right, 0, left, leftKeys + 1, rightKeys);
+        if (!isLeaf(left))
+            moveChildren(right, 0, left, leftKeys + 1, rightKeys + 1);
+        setKeysSize(left, leftKeys + 1 + rightKeys);
+
+        moveKeys(parent, leftIndex + 1, parent, leftIndex, parentKeys - leftIndex - 1);
+        moveChildren(parent, leftIndex + 2, parent, leftIndex + 1, parentKeys - leftIndex - 1);
+        setKeysSize(parent, parentKeys - 1);
+        freePage(right);
+        return left;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Bytes of direct memory held by a tree kept in an arena, 0 for one
+     * stored in a file.
+     */
+    long offHeapBytes() {
+        return arena == null ? 0 : arena.bytes();
+    }
+
+    /**
+     * Write the metadata page and every modified page to disk. Does nothing
+     * for a tree kept in an arena.
+     *
+     * @throws IOException
+     *             if the metadata cannot be written.
+     */
+    public void flush() throws IOException {
+        if (channel == null)
+            return;
+        writeMeta();
+        pages.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        pages.close();
+        if (channel != null)
+            channel.close();
+    }
+
+    /**
+     * Validate the tree according to the B-Tree invariants.
+     *
+     * @return True if valid.
+     */
+    public boolean validate() {
+        return validatePage(root, true, null, null);
+    }
+
+    private boolean validatePage(long page, boolean isRoot, T lower, T upper) {
+        int keys = keysSize(page);
+        if (keys > maxKeySize || (!isRoot && keys < minKeySize))
+            return false;
+        for (int i = 0; i < keys; i++) {
+            T key = readKey(page, i);
+            if (i > 0 && readKey(page, i - 1).compareTo(key) > 0)
+                return false;
+            if ((lower != null && key.compareTo(lower) < 0) || (upper != null && key.compareTo(upper) > 0))
+                return false;
+        }
+        if (isLeaf(page))
+            return true;
+        for (int i = 0; i <= keys; i++) {
+            T childLower = i == 0 ? lower : readKey(page, i - 1);
+            T childUpper = i == keys ? upper : readKey(page, i);
+            if (!validatePage(child(page, i), false, childLower, childUpper))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (keysSize(root) == 0) return "Tree has no nodes.";
+        return getString(root, "", true);
+    }
+
+    private String getString(long page, String prefix, boolean isTail) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(prefix).append((isTail ? "└── " : "├── "));
+        int keys = keysSize(page);
+        for (int i = 0; i < keys; i++) {
+            builder.append(readKey(page, i));
+            if (i < keys - 1)
+                builder.append(", ");
+        }
+        builder.append("\n");
+
+        if (!isLeaf(page)) {
+            for (int i = 0; i <= keys; i++) {
+                boolean last = i == keys;
+                builder.append(getString(child(page, i), prefix + (isTail ? "    " : "│   "), last));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private int lowerBound(long page, T value) {
+        int low = 0;
+        int high = keysSize(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(page, mid, value) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int upperBound(long page, T value) {
+        int low = 0;
+        int high = keysSize(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(page, mid, value) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int compareKey(long page, int index, T value) {
+        return codec.compare(pages.read(page), pages.offset(page) + keyOffset(index), value);
+    }
+
+    private T readKey(long page, int index) {
+        return codec.read(pages.read(page), pages.offset(page) + keyOffset(index));
+    }
+
+    private int keyOffset(int index) {
+        return HEADER + index * keyWidth;
+    }
+
+    private int childOffset(int index) {
+        return childrenOffset + index * Long.BYTES;
+    }
+
+    private int keysSize(long page) {
+        return pages.read(page).getInt(pages.offset(page) + KEYS_SIZE);
+    }
+
+    private void setKeysSize(long page, int keys) {
+        pages.write(page).putInt(pages.offset(page) + KEYS_SIZE, keys);
+    }
+
+    private boolean isLeaf(long page) {
+        return pages.read(page).get(pages.offset(page) + LEAF) != 0;
+    }
+
+    private long child(long page, int index) {
+        return pages.read(page).getLong(pages.offset(page) + childOffset(index));
+    }
+
+    private void setChild(long page, int index, long child) {
+        pages.write(page).putLong(pages.offset(page) + childOffset(index), child);
+    }
+
+    private void moveKeys(long from, int fromIndex, long to, int toIndex, int count) {
+        moveBytes(from, keyOffset(fromIndex), to, keyOffset(toIndex), count * keyWidth);
+    }
+
+    private void moveChildren(long from, int fromIndex, long to, int toIndex, int count) {
+        moveBytes(from, childOffset(fromIndex), to, childOffset(toIndex), count * Long.BYTES);
+    }
+
+    // Copy through the scratch buffer, which makes overlapping moves safe
+    private void moveBytes(long from, int fromOffset, long to, int toOffset, int length) {
+        if (length <= 0)
+            return;
+        pages.read(from).get(pages.offset(from) + fromOffset, scratch, 0, length);
+        pages.write(to).put(pages.offset(to) + toOffset, scratch, 0, length);
+    }
+
+    private long allocatePage(boolean leaf) {
+        long page;
+        if (freeHead != NONE) {
+            page = freeHead;
+            freeHead = pages.read(page).getLong(pages.offset(page));
+        } else {
+            page = pageCount++;
+        }
+        ByteBuffer buffer = pages.write(page);
+        buffer.putInt(pages.offset(page) + KEYS_SIZE, 0);
+        buffer.put(pages.offset(page) + LEAF, (byte) (leaf ? 1 : 0));
+        return page;
+    }
+
+    // Freed pages form a linked list through their first eight bytes
+    private void freePage(long page) {
+        pages.write(page).putLong(pages.offset(page), freeHead);
+        freeHead = page;
+    }
+
+    private void writeMeta() {
+        ByteBuffer meta = pages.write(0);
+        meta.putLong(META_MAGIC, MAGIC);
+        meta.putInt(META_PAGE_SIZE, pageSize);
+        meta.putInt(META_KEY_WIDTH, keyWidth);
+        meta.putLong(META_ROOT, root);
+        meta.putLong(META_SIZE, size);
+        meta.putLong(META_PAGE_COUNT, pageCount);
+        meta.putLong(META_FREE_HEAD, freeHead);
+    }
+
+    /**
+     * Access to the bytes of the tree's pages. A page starts at offset(page)
+     * of the buffer returned for it, which is only valid until the next call.
+     */
+    private interface Pages {
+
+        ByteBuffer read(long page);
+
+        // Like read, but marks the page as modified
+        ByteBuffer write(long page);
+
+        int offset(long page);
+
+        // Keep page in memory until it is unpinned
+        void pin(long page);
+
+        void unpin(long page);
+
+        void flush() throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Pages in direct buffers allocated in chunks as the tree grows, for
+     * trees that are not stored anywhere. The heap only sees the chunk
+     * objects however many pages there are.
+     */
+    private static final class ArenaPages implements Pages {
+
+        // pages are allocated in direct buffers of about this many bytes
+        private static final int CHUNK_BYTES = 1 << 20;
+
+        private final int pageSize;
+        private final int pagesPerChunk;
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+        private ArenaPages(int pageSize) {
+            this.pageSize = pageSize;
+            this.pagesPerChunk = Math.max(1, CHUNK_BYTES / pageSize);
+        }
+
+        public ByteBuffer read(long page) {
+            return chunk(page);
+        }
+
+        public ByteBuffer write(long page) {
+            return chunk(page);
+        }
+
+        public int offset(long page) {
+            return (int) (page % pagesPerChunk) * pageSize;
+        }
+
+        // Direct buffers never move or go away while the tree holds them
+        public void pin(long page) { }
+
+        public void unpin(long page) { }
+
+        public void flush() { }
+
+        public void close() {
+            chunks.clear();
+        }
+
+        private long bytes() {
+            return (long) chunks.size() * pagesPerChunk * pageSize;
+        }
+
+        // Chunk holding page, allocated the first time one of its pages is touched
+        private ByteBuffer chunk(long page) {
+            int index = (int) (page / pagesPerChunk);
+            while (chunks.size() <= index)
+                chunks.add(ByteBuffer.allocateDirect(pagesPerChunk * pageSize));
+            return chunks.get(index);
+        }
+    }
+
+    /**
+     * Pages mapped in segments of the file, left to the OS page cache.
+     */
+    private static final class MappedPages implements Pages {
+
+        // pages are mapped in segments of about this many bytes
+        private static final int SEGMENT_BYTES = 1 << 26;
+
+        private final FileChannel channel;
+        private final int pageSize;
+        private final int pagesPerSegment;
+        private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+        private MappedPages(FileChannel channel, int pageSize) {
+            this.channel = channel;
+            this.pageSize = pageSize;
+            this.pagesPerSegment = Math.max(1, SEGMENT_BYTES / pageSize);
+        }
+
+        public ByteBuffer read(long page) {
+            return segment(page);
+        }
+
+        public ByteBuffer write(long page) {
+            return segment(page);
+        }
+
+        public int offset(long page) {
+            return (int) (page % pagesPerSegment) * pageSize;
+        }
+
+        // Mapped pages stay addressable, the OS decides what is resident
+        public void pin(long page) { }
+
+        public void unpin(long page) { }
+
+        public void flush() {
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+        }
+
+        public void close() {
+            segments.clear();
+        }
+
+        /**
+         * Mapped segment holding page, mapping it (and growing the file) the
+         * first time it is touched.
+         */
+        private ByteBuffer segment(long page) {
+            int index = (int) (page / pagesPerSegment);
+            while (segments.size() <= index) {
+                long position = (long) segments.size() * pagesPerSegment * pageSize;
+                try {
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) pagesPerSegment * pageSize));
+                } catch (IOException e) {
+                    throw new IllegalStateException("could not map pages at " + position, e);
+                }
+            }
+            return segments.get(index);
+        }
+    }
+}
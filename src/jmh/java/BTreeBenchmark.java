@@ -0,0 +1,200 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import benchmarks.Keys;
+
+/**
+ * Smoke runner for the benchmarks, comparing BTree's insertion algorithms (insert, insert2pass
+ * and add) and deletion algorithms (delete and remove) across orders, key
+ * distributions and tree sizes. For every combination it reports throughput,
+ * per-operation latency percentiles and the bytes allocated per operation.
+ *
+ * The churn runs replace every key of a full tree once, each operation being
+ * a remove and an add, with and without the node pool, to show how much of
+ * the garbage structural changes produce is recycled.
+ *
+ * contains and insert-nosplit measure the bytes allocated by lookups and by
+ * inserts that do not split a node, which should both be zero;
+ * insert-nosplit runs insert but only counts the bytes allocated by the
+ * inserts that left the node count unchanged.
+ *
+ * Everything runs in one JVM after a couple of warmup rounds and every
+ * operation is timed, so the numbers only show roughly how the variants
+ * compare. Measure with the JMH benchmarks in the benchmarks package
+ * instead. Whether the variants are correct is up to the tests under
+ * src/test/java.
+ *
+ * Usage: java -cp target/benchmarks.jar BTreeBenchmark [size ...]
+ */
+public class BTreeBenchmark {
+
+    private static final int[] ORDERS = { 2, 8, 64, 256 };
+    private static final int[] DEFAULT_SIZES = { 10000 };
+    private static final String[] DISTRIBUTIONS = { "sequential", "random", "zipfian" };
+    private static final String[] INSERTS = { "insert", "insert2pass", "add" };
+    private static final String[] DELETES = { "delete", "remove" };
+    private static final String[] CHURNS = { "churn", "churn+pool" };
+    private static final int CHURN_POOL_SIZE = 1024;
+    private static final String[] ALLOCATION_CHECKS = { "contains", "insert-nosplit" };
+    // insert with metrics timing every operation and one in METRICS_SAMPLE_EVERY,
+    // against plain insert for the metrics-off cost
+    private static final String[] METRICS = { "insert+metrics", "insert+sampled" };
+    private static final int METRICS_SAMPLE_EVERY = 64;
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%-14s %5s %-10s %8s %12s %9s %9s %9s %10s%n",
+                "operation", "order", "keys", "size", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "bytes/op");
+        for (int size : sizes) {
+            for (String distribution : DISTRIBUTIONS) {
+                Long[] keys = Keys.generate(distribution, size);
+                for (int order : ORDERS) {
+                    for (String operation : INSERTS)
+                        report(operation, order, distribution, keys);
+                    for (String operation : DELETES)
+                        report(operation, order, distribution, keys);
+                    for (String operation : CHURNS)
+                        report(operation, order, distribution, keys);
+                    for (String operation : ALLOCATION_CHECKS)
+                        report(operation, order, distribution, keys);
+                    for (String operation : METRICS)
+                        report(operation, order, distribution, keys);
+                }
+            }
+        }
+    }
+
+    private static void report(String operation, int order, String distribution, Long[] keys) {
+        Result result = null;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++)
+            result = run(operation, order, keys);
+        System.out.printf("%-14s %5d %-10s %8d %12.0f %9d %9d %9d %10s%n",
+                operation, order, distribution, keys.length,
+                keys.length / (result.elapsedNanos / 1e9),
+                result.percentile(0.50), result.percentile(0.99), result.percentile(0.999),
+                result.allocatedBytes < 0 ? "n/a" : String.format("%.1f", result.allocatedBytes / (double) result.allocatingOps));
+    }
+
+    /**
+     * Insertions start from an empty tree. Deletions start from a tree built
+     * with insert and remove every key in the order they were generated.
+     * Churn starts from the same tree and swaps each key for a new one.
+     * Lookups also run against that tree.
+     */
+    private static Result run(String operation, int order, Long[] keys) {
+        BTree<Long> tree = new BTree<Long>(order);
+        boolean deleting = operation.equals("delete") || operation.equals("remove");
+        boolean churning = operation.startsWith("churn");
+        boolean lookingUp = operation.equals("contains");
+        // only measured per operation, as that costs two extra calls each
+        boolean perOperation = operation.equals("insert-nosplit");
+        if (deleting || churning || lookingUp) {
+            for (Long key : keys)
+                tree.insert(key);
+        }
+        Long[] replacements = null;
+        if (churning) {
+            if (operation.endsWith("+pool"))
+                tree.setNodePoolSize(CHURN_POOL_SIZE);
+            replacements = Keys.replacements(keys);
+        }
+        if (operation.equals("insert+metrics"))
+            tree.setMetrics(new BTreeMetrics());
+        else if (operation.equals("insert+sampled"))
+            tree.setMetrics(new BTreeMetrics(METRICS_SAMPLE_EVERY));
+
+        long[] latencies = new long[keys.length];
+        long perOperationBytes = 0;
+        int nonSplitting = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            Long key = keys[i];
+            long before = System.nanoTime();
+            if (perOperation) {
+                long nodes = tree.nodesAllocated();
+                long bytes = allocatedBytes();
+                tree.insert(key);
+                if (tree.nodesAllocated() == nodes) {
+                    perOperationBytes += allocatedBytes() - bytes;
+                    nonSplitting++;
+                }
+                latencies[i] = System.nanoTime() - before;
+                continue;
+            }
+            switch (operation) {
+            case "insert":
+            case "insert+metrics":
+            case "insert+sampled": tree.insert(key); break;
+            case "insert2pass": tree.insert2pass(key); break;
+            case "add": tree.add(key); break;
+            case "delete": tree.delete(key); break;
+            case "remove": tree.remove(key); break;
+            case "churn":
+            case "churn+pool": tree.remove(key); tree.add(replacements[i]); break;
+            case "contains": tree.contains(key); break;
+            default: throw new IllegalArgumentException(operation);
+            }
+            latencies[i] = System.nanoTime() - before;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+
+        // the latency and replacement arrays are allocated before measuring,
+        // everything else is the tree's
+        long allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        if (perOperation)
+            return new Result(elapsed, latencies, allocatedBefore < 0 ? -1 : perOperationBytes, Math.max(1, nonSplitting));
+        return new Result(elapsed, latencies, allocated, keys.length);
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS == null)
+            return -1;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    private static class Result {
+
+        private final long elapsedNanos;
+        private final long[] latencies;
+        private final long allocatedBytes;
+        // operations the allocated bytes are spread over
+        private final int allocatingOps;
+
+        private Result(long elapsedNanos, long[] latencies, long allocatedBytes, int allocatingOps) {
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.allocatedBytes = allocatedBytes;
+            this.allocatingOps = allocatingOps;
+            Arrays.sort(latencies);
+        }
+
+        private long percentile(double fraction) {
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+    }
+}
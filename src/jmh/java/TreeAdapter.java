@@ -0,0 +1,53 @@
+import benchmarks.Tree;
+
+/**
+ * BTree of Long keys as seen by the benchmarks, see benchmarks.Tree.
+ */
+public final class TreeAdapter implements Tree {
+
+    private final BTree<Long> tree;
+
+    public TreeAdapter(int order) {
+        this.tree = new BTree<Long>(order);
+    }
+
+    public boolean insert(Long key) {
+        return tree.insert(key);
+    }
+
+    public boolean insert2pass(Long key) {
+        return tree.insert2pass(key);
+    }
+
+    public boolean add(Long key) {
+        return tree.add(key);
+    }
+
+    public Long delete(Long key) {
+        return tree.delete(key);
+    }
+
+    public Long remove(Long key) {
+        return tree.remove(key);
+    }
+
+    public boolean contains(Long key) {
+        return tree.contains(key);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public void clear() {
+        tree.clear();
+    }
+
+    public void setNodePoolSize(int poolSize) {
+        tree.setNodePoolSize(poolSize);
+    }
+
+    public void setMetrics(int sampleEvery) {
+        tree.setMetrics(sampleEvery == 0 ? null : new BTreeMetrics(sampleEvery));
+    }
+}
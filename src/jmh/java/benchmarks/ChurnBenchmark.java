@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A tree of size keys that keeps its size while every key is swapped for
+ * another one, one remove and one add per operation. Run with -prof gc to
+ * see how much of the garbage the splits and merges produce the node pool
+ * recycles when poolSize is not 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ChurnBenchmark {
+
+    @Param({ "2", "8", "64", "256" })
+    private int order;
+
+    @Param({ "sequential", "random", "zipfian" })
+    private String distribution;
+
+    @Param({ "10000", "100000", "1000000" })
+    private int size;
+
+    @Param({ "0", "1024" })
+    private int poolSize;
+
+    // the keys in the tree and the ones replacing them, swapped after every pass
+    private Long[] current;
+    private Long[] replacements;
+    private Tree tree;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        current = Keys.generate(distribution, size);
+        replacements = Keys.replacements(current);
+        tree = Tree.create(order);
+        tree.setNodePoolSize(poolSize);
+        for (Long key : current)
+            tree.insert(key);
+    }
+
+    @Benchmark
+    public Long churn() {
+        Long removed = tree.remove(current[next]);
+        tree.add(replacements[next]);
+        if (++next == current.length) {
+            Long[] swap = current;
+            current = replacements;
+            replacements = swap;
+            next = 0;
+        }
+        return removed;
+    }
+}
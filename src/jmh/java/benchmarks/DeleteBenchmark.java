@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BTree's deletion algorithms, delete topping nodes up on the way down and
+ * the bottom-up remove, emptying a tree of size keys in the order they were
+ * generated. A tree cannot be refilled for free between single deletions, so
+ * one invocation is the whole drain and the scores are per size deletions;
+ * the untimed setup builds the tree before each one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class DeleteBenchmark {
+
+    @Param({ "2", "8", "64", "256" })
+    private int order;
+
+    @Param({ "sequential", "random", "zipfian" })
+    private String distribution;
+
+    @Param({ "10000", "100000", "1000000" })
+    private int size;
+
+    private Long[] keys;
+    private Tree tree;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        keys = Keys.generate(distribution, size);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        tree = Tree.create(order);
+        for (Long key : keys)
+            tree.insert(key);
+    }
+
+    @Benchmark
+    public Tree delete() {
+        for (Long key : keys)
+            tree.delete(key);
+        return tree;
+    }
+
+    @Benchmark
+    public Tree remove() {
+        for (Long key : keys)
+            tree.remove(key);
+        return tree;
+    }
+}
@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One insert by each of BTree's insertion algorithms: insert splitting full
+ * nodes on the way down, insert2pass and the bottom-up add. The tree grows
+ * from empty to size keys and then starts over, so the operations see the
+ * splits that building a tree of that size takes.
+ *
+ * sampleEvery attaches BTreeMetrics timing one insert in that many, to
+ * compare against the default of no metrics at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class InsertBenchmark {
+
+    @Param({ "2", "8", "64", "256" })
+    private int order;
+
+    @Param({ "sequential", "random", "zipfian" })
+    private String distribution;
+
+    @Param({ "10000", "100000", "1000000" })
+    private int size;
+
+    @Param({ "0" })
+    private int sampleEvery;
+
+    private Long[] keys;
+    private Tree tree;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        keys = Keys.generate(distribution, size);
+        tree = Tree.create(order);
+        tree.setMetrics(sampleEvery);
+    }
+
+    @Benchmark
+    public boolean insert() {
+        return tree.insert(next());
+    }
+
+    @Benchmark
+    public boolean insert2pass() {
+        return tree.insert2pass(next());
+    }
+
+    @Benchmark
+    public boolean add() {
+        return tree.add(next());
+    }
+
+    private Long next() {
+        if (next == keys.length) {
+            // once every size inserts, so the cost is spread thin
+            tree.clear();
+            next = 0;
+        }
+        return keys[next++];
+    }
+}
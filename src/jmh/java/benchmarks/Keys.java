@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Key distributions the benchmarks run with, boxed up front so boxing is not
+ * part of what is measured.
+ */
+public final class Keys {
+
+    // number of distinct hot regions the zipfian keys are spread over
+    private static final int ZIPF_REGIONS = 1024;
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    private Keys() { }
+
+    /**
+     * Generate distinct keys. Sequential keys ascend, random keys are a
+     * shuffled range and zipfian keys fall into a few hot regions of the key
+     * space far more often than into the rest.
+     *
+     * @param distribution
+     *            sequential, random or zipfian.
+     * @param size
+     *            number of keys.
+     */
+    public static Long[] generate(String distribution, int size) {
+        Long[] keys = new Long[size];
+        Random random = new Random(42);
+        if (distribution.equals("sequential")) {
+            for (int i = 0; i < size; i++)
+                keys[i] = (long) i;
+        } else if (distribution.equals("random")) {
+            for (int i = 0; i < size; i++)
+                keys[i] = (long) i;
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                Long swap = keys[i];
+                keys[i] = keys[j];
+                keys[j] = swap;
+            }
+        } else if (distribution.equals("zipfian")) {
+            double[] cumulative = new double[ZIPF_REGIONS];
+            double sum = 0;
+            for (int rank = 0; rank < ZIPF_REGIONS; rank++) {
+                sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+                cumulative[rank] = sum;
+            }
+            for (int i = 0; i < size; i++) {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                if (rank < 0)
+                    rank = -rank - 1;
+                // the region picks the high bits, the index keeps keys distinct
+                keys[i] = (long) rank * size + i;
+            }
+        } else {
+            throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+        return keys;
+    }
+
+    /**
+     * Keys distinct from every generated one, for replacing them.
+     */
+    public static Long[] replacements(Long[] keys) {
+        Long[] replacements = new Long[keys.length];
+        // generated keys are never negative
+        for (int i = 0; i < keys.length; i++)
+            replacements[i] = -keys[i] - 1;
+        return replacements;
+    }
+}
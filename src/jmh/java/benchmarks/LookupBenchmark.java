@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * contains on a tree of size keys, looking every key up in turn. With
+ * -prof gc it also shows that lookups allocate nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class LookupBenchmark {
+
+    @Param({ "2", "8", "64", "256" })
+    private int order;
+
+    @Param({ "sequential", "random", "zipfian" })
+    private String distribution;
+
+    @Param({ "10000", "100000", "1000000" })
+    private int size;
+
+    private Long[] keys;
+    private Tree tree;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        keys = Keys.generate(distribution, size);
+        tree = Tree.create(order);
+        for (Long key : keys)
+            tree.insert(key);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        Long key = keys[next];
+        if (++next == keys.length)
+            next = 0;
+        return tree.contains(key);
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+/**
+ * The operations of a BTree of Long keys that the benchmarks measure. JMH
+ * only accepts benchmarks in a named package, which cannot refer to BTree in
+ * the default package, so TreeAdapter implements this next to it. It is the
+ * only implementation, so the calls are inlined as if made on the tree.
+ */
+public interface Tree {
+
+    boolean insert(Long key);
+
+    boolean insert2pass(Long key);
+
+    boolean add(Long key);
+
+    Long delete(Long key);
+
+    Long remove(Long key);
+
+    boolean contains(Long key);
+
+    int size();
+
+    void clear();
+
+    void setNodePoolSize(int poolSize);
+
+    /**
+     * Attach metrics timing one operation in sampleEvery, or none at all for
+     * 0.
+     */
+    void setMetrics(int sampleEvery);
+
+    /**
+     * @return an empty BTree of order.
+     */
+    static Tree create(int order) {
+        try {
+            return (Tree) Class.forName("TreeAdapter").getConstructor(int.class).newInstance(order);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("TreeAdapter is not on the class path", e);
+        }
+    }
+}
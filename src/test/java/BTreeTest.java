@@ -0,0 +1,163 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BTreeTest {
+
+    private static final int[] ORDERS = { 2, 8, 64, 256 };
+    private static final int SEEDS = 20;
+    private static final int SIZE = 300;
+
+    private static List<Integer> shuffled(int size, Random random) {
+        List<Integer> keys = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+            keys.add(i);
+        Collections.shuffle(keys, random);
+        return keys;
+    }
+
+    private static void insert(BTree<Integer> tree, String variant, Integer key) {
+        switch (variant) {
+        case "insert": tree.insert(key); break;
+        case "insert2pass": tree.insert2pass(key); break;
+        case "add": tree.add(key); break;
+        default: throw new IllegalArgumentException(variant);
+        }
+    }
+
+    @Test
+    public void everyInsertVariantFindsItsKeys() {
+        for (String variant : new String[] { "insert", "insert2pass", "add" }) {
+            for (int order : ORDERS) {
+                List<Integer> keys = shuffled(SIZE * 10, new Random(order));
+                BTree<Integer> tree = new BTree<Integer>(order);
+                for (Integer key : keys)
+                    insert(tree, variant, key);
+                assertEquals(keys.size(), tree.size(), variant + " order " + order);
+                assertTrue(tree.validate(), variant + " order " + order);
+                for (Integer key : keys)
+                    assertTrue(tree.contains(key), variant + " order " + order + " lost " + key);
+            }
+        }
+    }
+
+    @Test
+    public void everyDeleteVariantEmptiesTheTree() {
+        for (String variant : new String[] { "delete", "remove" }) {
+            for (int order : ORDERS) {
+                Random random = new Random(order);
+                List<Integer> keys = shuffled(SIZE * 10, random);
+                BTree<Integer> tree = new BTree<Integer>(order);
+                for (Integer key : keys)
+                    tree.insert(key);
+                Collections.shuffle(keys, random);
+                for (int i = 0; i < keys.size(); i++) {
+                    Integer key = keys.get(i);
+                    if (variant.equals("delete"))
+                        tree.delete(key);
+                    else
+                        tree.remove(key);
+                    if (i % 100 == 0)
+                        assertTrue(tree.validate(), variant + " order " + order);
+                }
+                assertEquals(0, tree.size(), variant + " order " + order);
+                for (Integer key : keys)
+                    assertFalse(tree.contains(key), variant + " order " + order + " kept " + key);
+            }
+        }
+    }
+
+    /**
+     * The polls remove bottom-up through parent pointers that delete rewires
+     * top-down, so drain a tree that delete has shrunk from both ends and
+     * validate it after every poll.
+     */
+    @Test
+    public void pollsAfterDeleteKeepTheTreeValid() {
+        for (int order : ORDERS) {
+            for (int seed = 0; seed < SEEDS; seed++) {
+                Random random = new Random(seed);
+                List<Integer> keys = shuffled(SIZE, random);
+                BTree<Integer> tree = new BTree<Integer>(order);
+                for (Integer key : keys)
+                    tree.insert(key);
+                Collections.shuffle(keys, random);
+                for (int i = 0; i < keys.size() / 2; i++)
+                    tree.delete(keys.get(i));
+
+                List<Integer> left = new ArrayList<Integer>(keys.subList(keys.size() / 2, keys.size()));
+                Collections.sort(left);
+                boolean first = true;
+                while (!left.isEmpty()) {
+                    Integer expected = first ? left.remove(0) : left.remove(left.size() - 1);
+                    assertEquals(expected, first ? tree.pollFirst() : tree.pollLast(), "order " + order + " seed " + seed);
+                    assertTrue(tree.validate(), "order " + order + " seed " + seed);
+                    first = !first;
+                }
+                assertEquals(0, tree.size());
+
+                for (Integer key : keys)
+                    tree.insert2pass(key);
+                assertEquals(keys.size(), tree.size());
+                assertTrue(tree.validate(), "insert2pass after polls, order " + order + " seed " + seed);
+            }
+        }
+    }
+
+    @Test
+    public void bulkLoadOfUnsortedKeysLeavesTheTreeAsItWas() {
+        BTree<Integer> tree = new BTree<Integer>(2);
+        for (int key = 10; key < 15; key++)
+            tree.insert(key);
+        assertThrows(IllegalArgumentException.class,
+                () -> tree.bulkLoad(Arrays.asList(1, 2, 3, 0).iterator(), 1.0));
+        assertEquals(5, tree.size());
+        assertTrue(tree.validate());
+        for (int key = 10; key < 15; key++)
+            assertTrue(tree.contains(key), "lost " + key);
+        assertFalse(tree.contains(1));
+
+        tree.bulkLoad(Arrays.asList(1, 2, 3, 4, 5, 6, 7).iterator(), 1.0);
+        assertEquals(7, tree.size());
+        assertTrue(tree.validate());
+        assertFalse(tree.contains(10));
+    }
+
+    @Test
+    public void treeEmptiedByDeleteIsEmpty() {
+        for (int order : ORDERS) {
+            BTree<Integer> tree = new BTree<Integer>(order);
+            List<Integer> keys = shuffled(SIZE, new Random(order));
+            for (Integer key : keys)
+                tree.insert(key);
+            for (Integer key : keys)
+                tree.delete(key);
+
+            assertEquals(0, tree.size());
+            assertTrue(tree.validate());
+            assertThrows(NoSuchElementException.class, () -> tree.first());
+            assertThrows(NoSuchElementException.class, () -> tree.last());
+            assertNull(tree.pollFirst());
+            assertNull(tree.pollLast());
+            assertEquals(0, tree.size());
+            assertFalse(tree.iterator().hasNext());
+
+            tree.insert(1);
+            assertEquals(Integer.valueOf(1), tree.first());
+            assertEquals(Integer.valueOf(1), tree.pollLast());
+            assertEquals(0, tree.size());
+            assertTrue(tree.validate());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentBTreeTest {
+
+    private static final int ORDER = 16;
+    private static final int KEYS = 100000;
+    private static final int LOOKUPS = 200000;
+
+    @Test
+    public void concurrentWritersKeepTheTreeValid() throws InterruptedException {
+        for (int order : new int[] { 2, 3, ORDER }) {
+            ConcurrentBTree<Integer> tree = new ConcurrentBTree<Integer>(order);
+            // the keys each writer owns are those equal to its index modulo writers
+            final int writers = 4;
+            final int range = 20000;
+            List<Thread> threads = new ArrayList<Thread>();
+            ConcurrentHashMap<Integer, Boolean> present = new ConcurrentHashMap<Integer, Boolean>();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                threads.add(new Thread(() -> {
+                    Random random = new Random(writer);
+                    for (int op = 0; op < 50000; op++) {
+                        int key = random.nextInt(range / writers) * writers + writer;
+                        if (present.containsKey(key)) {
+                            if (tree.delete(key) == null)
+                                throw new AssertionError("lost " + key);
+                            present.remove(key);
+                        } else {
+                            tree.insert(key);
+                            present.put(key, Boolean.TRUE);
+                        }
+                    }
+                }));
+            }
+            AtomicBoolean failed = new AtomicBoolean();
+            for (Thread thread : threads) {
+                thread.setUncaughtExceptionHandler((t, e) -> failed.set(true));
+                thread.start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            assertFalse(failed.get(), "order " + order);
+            assertTrue(tree.validate(), "order " + order);
+            assertEquals(present.size(), tree.size(), "order " + order);
+            for (int key = 0; key < range; key++)
+                assertEquals(present.containsKey(key), tree.contains(key), "order " + order + " key " + key);
+        }
+    }
+
+    /**
+     * Writers only change the versions of the nodes they modify, so lookups
+     * running next to a writer should almost never fail validation.
+     */
+    @Test
+    public void optimisticLookupsMostlySucceedWhileWriting() throws InterruptedException {
+        ConcurrentBTree<Integer> tree = new ConcurrentBTree<Integer>(ORDER);
+        for (int key = 0; key < KEYS; key += 2)
+            tree.insert(key);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong writes = new AtomicLong();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            while (!done.get()) {
+                // odd keys, so the lookups of even keys always find theirs
+                int key = random.nextInt(KEYS / 2) * 2 + 1;
+                if (tree.delete(key) == null)
+                    tree.insert(key);
+                writes.incrementAndGet();
+            }
+        });
+        writer.start();
+        while (writes.get() < 1000)
+            Thread.yield();
+
+        Random random = new Random(2);
+        int failures = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            int result = tree.containsOptimistic(random.nextInt(KEYS / 2) * 2);
+            if (result < 0)
+                failures++;
+            else
+                assertEquals(1, result);
+        }
+        done.set(true);
+        writer.join();
+
+        assertTrue(writes.get() > 1000);
+        assertTrue(failures < LOOKUPS / 100, failures + " of " + LOOKUPS + " lookups failed validation");
+        assertTrue(tree.validate());
+    }
+}